@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.activeandroid.query.Select;
+import com.activeandroid.query.Update;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.CacheTagEntity;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import okio.BufferedSink;
+import okio.Okio;
+
+public class CacheCompactionTest extends AndroidTestCase {
+  private static final String HOST = "http://localhost";
+  private static final MediaType JSON = MediaType.parse("application/json");
+  private static final long ONE_HOUR = 3600 * 1000L;
+
+  private CacheManager cacheManager;
+  private CacheOptions options;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+    new Delete().from(CacheTagEntity.class).execute();
+    cacheManager = new CacheManager();
+    options = new CacheOptions.Builder().maxCacheAge(60).tags("items").build();
+  }
+
+  @MediumTest
+  public void testEvictsLeastRecentlyUpdated() throws Exception {
+    cache("/api/items/1", "item 1");
+    Thread.sleep(10);
+    cache("/api/items/2", "item 2");
+    Thread.sleep(10);
+    cache("/api/items/3", "item 3");
+    Thread.sleep(10);
+    // Updated, so it's the most recent one now
+    cache("/api/items/1", "item 1");
+
+    assertEquals(1, cacheManager.compact(Long.MAX_VALUE, 2));
+    assertNotNull(getCached("/api/items/1"));
+    assertNull(getCached("/api/items/2"));
+    assertNotNull(getCached("/api/items/3"));
+  }
+
+  @MediumTest
+  public void testEvictsToFitSize() throws IOException {
+    cache("/api/items/1", "item 1");
+    cache("/api/items/2", "item 2");
+
+    assertEquals(2, cacheManager.compact(0, Integer.MAX_VALUE));
+    assertEquals(0, new Select().from(ResponseCacheEntity.class).count());
+  }
+
+  @MediumTest
+  public void testPurgesLongExpiredCaches() throws IOException {
+    cache("/api/items/1", "item 1");
+    cache("/api/items/2", "item 2");
+    cache("/api/items/3", "item 3", new CacheOptions.Builder().maxCacheAge(60).alwaysUseCacheIfOffline(true).build());
+    expire("/api/items/1", 2 * 24 * ONE_HOUR);
+    // Still kept for revalidation
+    expire("/api/items/2", ONE_HOUR);
+    // Offline caches are kept
+    expire("/api/items/3", 2 * 24 * ONE_HOUR);
+
+    assertEquals(1, cacheManager.compact(Long.MAX_VALUE, Integer.MAX_VALUE));
+    assertEquals(0, count("/api/items/1"));
+    assertEquals(1, count("/api/items/2"));
+    assertEquals(1, count("/api/items/3"));
+  }
+
+  @MediumTest
+  public void testRemovesTagsOfRemovedEntries() throws IOException {
+    cache("/api/items/1", "item 1");
+    cache("/api/items/2", "item 2");
+    assertEquals(2, new Select().from(CacheTagEntity.class).count());
+
+    // Invalidation by path leaves the tags to the compaction
+    assertEquals(1, cacheManager.invalidatePaths(Collections.singleton("/api/items/1")));
+    cacheManager.compact(Long.MAX_VALUE, Integer.MAX_VALUE);
+    assertEquals(1, new Select().from(CacheTagEntity.class).count());
+  }
+
+  @MediumTest
+  public void testRemovesOrphanBodyFiles() throws IOException {
+    cache("/api/items/1", largeBody('1'));
+    File bodyFile = new File(new Select().from(ResponseCacheEntity.class).<ResponseCacheEntity>executeSingle().getBodyFile());
+    bodyFile.setLastModified(System.currentTimeMillis() - ONE_HOUR);
+    File oldOrphan = new File(bodyFile.getParentFile(), "old-orphan");
+    writeFile(oldOrphan);
+    oldOrphan.setLastModified(System.currentTimeMillis() - ONE_HOUR);
+    // Might be just written and not saved in database yet
+    File newOrphan = new File(bodyFile.getParentFile(), "new-orphan");
+    writeFile(newOrphan);
+
+    cacheManager.compact(Long.MAX_VALUE, Integer.MAX_VALUE);
+    assertTrue(bodyFile.exists());
+    assertFalse(oldOrphan.exists());
+    assertTrue(newOrphan.exists());
+    newOrphan.delete();
+  }
+
+  private Response getCached(String path) {
+    return cacheManager.getCachedResponse(new Request.Builder().url(HOST + path).build(), options);
+  }
+
+  private int count(String path) {
+    return new Select().from(ResponseCacheEntity.class).where("url = ?", HOST + path).count();
+  }
+
+  private void expire(String path, long ago) {
+    new Update(ResponseCacheEntity.class).set("expiredAt = ?", System.currentTimeMillis() - ago)
+        .where("url = ?", HOST + path).execute();
+  }
+
+  private void cache(String path, String body) throws IOException {
+    cache(path, body, options);
+  }
+
+  /**
+   * The cache is written once the body is fully read
+   */
+  private void cache(String path, String body, CacheOptions options) throws IOException {
+    Request request = new Request.Builder().url(HOST + path).build();
+    Response response = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200)
+        .body(ResponseBody.create(JSON, body)).build();
+    cacheManager.cacheResponse(request, response, options).body().string();
+  }
+
+  private static void writeFile(File file) throws IOException {
+    BufferedSink sink = Okio.buffer(Okio.sink(file));
+    sink.writeUtf8("orphan");
+    sink.close();
+  }
+
+  /**
+   * Stored in a file instead of the database row
+   */
+  private static String largeBody(char c) {
+    StringBuilder sb = new StringBuilder(CacheManager.MAX_INLINE_BODY_SIZE + 1);
+    for(int i = 0; i <= CacheManager.MAX_INLINE_BODY_SIZE; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+}
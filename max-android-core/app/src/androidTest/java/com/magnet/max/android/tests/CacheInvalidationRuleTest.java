@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.CacheInvalidationRule;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import junit.framework.TestCase;
+
+public class CacheInvalidationRuleTest extends TestCase {
+  private static final RequestBody EMPTY_BODY = RequestBody.create(MediaType.parse("application/json"), "{}");
+
+  @SmallTest
+  public void testMatchesMutatingCallsOnPath() {
+    CacheInvalidationRule rule = new CacheInvalidationRule.Builder().pathPattern("/api/users/[^/]+$")
+        .invalidateTags("users").build();
+
+    assertTrue(rule.matches(newRequest("PUT", "http://localhost/api/users/123")));
+    assertTrue(rule.matches(newRequest("DELETE", "http://localhost/api/users/123")));
+    assertFalse(rule.matches(newRequest("GET", "http://localhost/api/users/123")));
+    assertFalse(rule.matches(newRequest("PUT", "http://localhost/api/users/123/avatar")));
+  }
+
+  @SmallTest
+  public void testMatchesOnlyGivenMethods() {
+    CacheInvalidationRule rule = new CacheInvalidationRule.Builder().pathPattern("/api/channels")
+        .methods("POST").invalidatePaths("/api/channels").build();
+
+    assertTrue(rule.matches(newRequest("POST", "http://localhost/api/channels")));
+    assertFalse(rule.matches(newRequest("PUT", "http://localhost/api/channels")));
+  }
+
+  @SmallTest
+  public void testBuildRequiresPatternAndTarget() {
+    try {
+      new CacheInvalidationRule.Builder().invalidateTags("users").build();
+      fail("pathPattern is required");
+    } catch (IllegalArgumentException e) {
+    }
+
+    try {
+      new CacheInvalidationRule.Builder().pathPattern("/api/users").build();
+      fail("tags or paths are required");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  private static Request newRequest(String method, String url) {
+    return new Request.Builder().url(url).method(method, "GET".equals(method) ? null : EMPTY_BODY).build();
+  }
+}
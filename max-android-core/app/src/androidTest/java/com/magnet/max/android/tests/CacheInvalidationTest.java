@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.util.Collections;
+
+public class CacheInvalidationTest extends AndroidTestCase {
+  private static final String HOST = "http://localhost";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private CacheManager cacheManager;
+  private CacheOptions options;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+    cacheManager = new CacheManager();
+    options = new CacheOptions.Builder().maxCacheAge(60).build();
+  }
+
+  @MediumTest
+  public void testInvalidatePathsMatchesLiterally() throws IOException {
+    cache("/api/user_items", "/api/userXitems", "/api/100%25off", "/api/100XX25off");
+
+    // '_' and '%' aren't wildcards
+    assertEquals(1, cacheManager.invalidatePaths(Collections.singleton("/api/user_items")));
+    assertEquals(1, cacheManager.invalidatePaths(Collections.singleton("/api/100%25off")));
+    assertNotNull(getCached("/api/userXitems"));
+    assertNotNull(getCached("/api/100XX25off"));
+  }
+
+  @MediumTest
+  public void testInvalidatePathsMatchesWholeSegments() throws IOException {
+    cache("/api/user", "/api/user/1", "/api/users", "/api/users/1", "/api/items?owner=/api/user", "/api/items");
+
+    assertEquals(2, cacheManager.invalidatePaths(Collections.singleton("/api/user/")));
+    assertNull(getCached("/api/user"));
+    assertNull(getCached("/api/user/1"));
+    assertNotNull(getCached("/api/users"));
+    assertNotNull(getCached("/api/users/1"));
+    assertNotNull(getCached("/api/items?owner=/api/user"));
+  }
+
+  @MediumTest
+  public void testInvalidatePathsKeepsOtherEntriesInMemory() throws IOException {
+    cache("/api/user", "/api/items");
+
+    assertEquals(1, cacheManager.invalidatePaths(Collections.singleton("api/user")));
+    long hits = cacheManager.getMemoryCache().getHitCount();
+    assertNotNull(getCached("/api/items"));
+    assertEquals(hits + 1, cacheManager.getMemoryCache().getHitCount());
+    assertNull(getCached("/api/user"));
+  }
+
+  private Response getCached(String path) {
+    return cacheManager.getCachedResponse(new Request.Builder().url(HOST + path).build(), options);
+  }
+
+  /**
+   * The cache is written once the body is fully read
+   */
+  private void cache(String... paths) throws IOException {
+    for(String path : paths) {
+      Request request = new Request.Builder().url(HOST + path).build();
+      Response response = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200)
+          .body(ResponseBody.create(JSON, path)).build();
+      cacheManager.cacheResponse(request, response, options).body().string();
+    }
+  }
+}
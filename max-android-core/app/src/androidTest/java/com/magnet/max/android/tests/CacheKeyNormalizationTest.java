@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.qos.internal.CacheUtils;
+import com.squareup.okhttp.Request;
+import junit.framework.TestCase;
+
+public class CacheKeyNormalizationTest extends TestCase {
+
+  @SmallTest
+  public void testQueryOrderDoesNotMatter() {
+    assertEquals(hash("http://localhost/api/items?b=2&a=1&c=3"),
+        hash("http://localhost/api/items?c=3&a=1&b=2"));
+    // Values of the same name keep their order
+    assertFalse(hash("http://localhost/api/items?id=1&id=2").equals(hash("http://localhost/api/items?id=2&id=1")));
+  }
+
+  @SmallTest
+  public void testIgnoredParams() {
+    Request r1 = new Request.Builder().url("http://localhost/api/items?q=max&_ts=1").build();
+    Request r2 = new Request.Builder().url("http://localhost/api/items?_ts=2&q=max").build();
+    CacheUtils.setCacheKey(r1, new String[] {"_ts"}, null);
+    CacheUtils.setCacheKey(r2, new String[] {"_ts"}, null);
+    assertEquals(CacheUtils.getRequestHash(r1), CacheUtils.getRequestHash(r2));
+    assertEquals(hash("http://localhost/api/items?q=max"), CacheUtils.getRequestHash(r1));
+  }
+
+  @SmallTest
+  public void testHeaderAllowList() {
+    Request en = new Request.Builder().url("http://localhost/api/items").header("Accept-Language", "en").build();
+    Request fr = new Request.Builder().url("http://localhost/api/items").header("Accept-Language", "fr").build();
+    assertEquals(CacheUtils.getRequestHash(en), CacheUtils.getRequestHash(fr));
+
+    en = new Request.Builder().url("http://localhost/api/items").header("Accept-Language", "en").build();
+    fr = new Request.Builder().url("http://localhost/api/items").header("Accept-Language", "fr").build();
+    CacheUtils.setCacheKey(en, null, new String[] {"accept-language"});
+    CacheUtils.setCacheKey(fr, null, new String[] {"Accept-Language"});
+    assertFalse(CacheUtils.getRequestHash(en).equals(CacheUtils.getRequestHash(fr)));
+  }
+
+  private static String hash(String url) {
+    return CacheUtils.getRequestHash(new Request.Builder().url(url).build());
+  }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.magnet.max.android.auth.AuthTokenProvider;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+
+public class CachePartitionTest extends AndroidTestCase {
+  private static final String URL = "http://localhost/api/items";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private TestAuthTokenProvider authTokenProvider;
+  private CacheManager cacheManager;
+  private CacheOptions options;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+    authTokenProvider = new TestAuthTokenProvider();
+    cacheManager = new CacheManager(authTokenProvider) {
+      @Override protected String getCurrentUserId() {
+        return authTokenProvider.userId;
+      }
+    };
+    options = new CacheOptions.Builder().maxCacheAge(60).build();
+  }
+
+  @MediumTest
+  public void testCachePartitionedByUser() throws IOException {
+    authTokenProvider.login("token-a", "user-a");
+    cache("items of a");
+
+    // Not served to another user
+    authTokenProvider.login("token-b", "user-b");
+    assertNull(getCached());
+    cache("items of b");
+
+    // Nor shared when nobody is logged in
+    authTokenProvider.login(null, null);
+    assertNull(getCached());
+    cache("shared items");
+
+    // A returning user gets the warm cache back
+    authTokenProvider.login("token-a", "user-a");
+    assertEquals("items of a", getCached().body().string());
+  }
+
+  @MediumTest
+  public void testDropPartition() throws IOException {
+    authTokenProvider.login("token-a", "user-a");
+    cache("items of a");
+    authTokenProvider.login("token-b", "user-b");
+    cache("items of b");
+    authTokenProvider.login(null, null);
+    cache("shared items");
+
+    // Logout of a drops only the entries of a
+    assertEquals(1, cacheManager.dropPartition("user-a"));
+    authTokenProvider.login("token-a", "user-a");
+    assertNull(getCached());
+    authTokenProvider.login("token-b", "user-b");
+    assertEquals("items of b", getCached().body().string());
+    authTokenProvider.login(null, null);
+    assertEquals("shared items", getCached().body().string());
+  }
+
+  private Response getCached() {
+    return cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options);
+  }
+
+  /**
+   * The cache is written once the body is fully read
+   */
+  private void cache(String body) throws IOException {
+    Request request = new Request.Builder().url(URL).build();
+    Response response = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200)
+        .body(ResponseBody.create(JSON, body)).build();
+    cacheManager.cacheResponse(request, response, options).body().string();
+  }
+
+  /**
+   * Auth is enabled while a user is logged in
+   */
+  private static class TestAuthTokenProvider implements AuthTokenProvider {
+    private volatile String userToken;
+    private volatile String userId;
+
+    public void login(String userToken, String userId) {
+      this.userToken = userToken;
+      this.userId = userId;
+    }
+
+    @Override public boolean isAuthEnabled() {
+      return null != userToken;
+    }
+
+    @Override public boolean isAuthRequired(Request request) {
+      return true;
+    }
+
+    @Override public boolean isAuthReady(Request request) {
+      return true;
+    }
+
+    @Override public String getAppToken() {
+      return null;
+    }
+
+    @Override public String getUserToken() {
+      return userToken;
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.activeandroid.query.Select;
+import com.magnet.max.android.auth.AuthTokenProvider;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.RequestInterceptor;
+import com.magnet.max.android.rest.RequestManager;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class CacheRevalidationTest extends AndroidTestCase {
+  private static final String URL = "http://localhost/api/items";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private CacheManager cacheManager;
+  private CacheOptions options;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+    cacheManager = new CacheManager();
+    options = new CacheOptions.Builder().maxCacheAge(1).build();
+  }
+
+  @MediumTest
+  public void testNotModifiedRefreshesEtagCache() throws Exception {
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").header("ETag", "\"v1\"").build());
+    Thread.sleep(1100);
+    assertNull(cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options));
+
+    Request conditional = cacheManager.newConditionalRequest(new Request.Builder().url(URL).build(), options);
+    assertNotNull(conditional);
+    assertEquals("\"v1\"", conditional.header("If-None-Match"));
+    assertNull(conditional.header("If-Modified-Since"));
+
+    Response refreshed = cacheManager.refreshCachedResponse(conditional, newNotModified(conditional).build(), options);
+    assertNotNull(refreshed);
+    assertEquals(200, refreshed.code());
+    assertEquals("items", refreshed.body().string());
+    assertEquals(304, refreshed.networkResponse().code());
+
+    // Fresh again, also after reading it back from the database
+    cacheManager.getMemoryCache().clear();
+    Response cached = cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options);
+    assertNotNull(cached);
+    assertEquals("items", cached.body().string());
+  }
+
+  @MediumTest
+  public void testNotModifiedRefreshesLastModifiedCache() throws Exception {
+    String lastModified = "Mon, 05 Oct 2015 10:00:00 GMT";
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").header("Last-Modified", lastModified).build());
+    Thread.sleep(1100);
+
+    Request conditional = cacheManager.newConditionalRequest(new Request.Builder().url(URL).build(), options);
+    assertNotNull(conditional);
+    assertEquals(lastModified, conditional.header("If-Modified-Since"));
+    assertNull(conditional.header("If-None-Match"));
+
+    Response refreshed = cacheManager.refreshCachedResponse(conditional, newNotModified(conditional).build(), options);
+    assertNotNull(refreshed);
+    assertEquals("items", refreshed.body().string());
+    assertNotNull(cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options));
+  }
+
+  @MediumTest
+  public void testNoConditionalRequestWithoutValidators() throws Exception {
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").build());
+    Thread.sleep(1100);
+
+    assertNull(cacheManager.newConditionalRequest(new Request.Builder().url(URL).build(), options));
+  }
+
+  @MediumTest
+  public void testConditionalRequestOfCallerIsLeftAlone() throws IOException {
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").header("ETag", "\"v1\"").build());
+
+    assertNull(cacheManager.newConditionalRequest(
+        new Request.Builder().url(URL).header("If-None-Match", "\"v0\"").build(), options));
+  }
+
+  @MediumTest
+  public void testRetriedWithoutValidatorsWhenCacheIsGone() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    while(sb.length() <= CacheManager.MAX_INLINE_BODY_SIZE) {
+      sb.append("items ");
+    }
+    final String body = sb.toString();
+    final List<Request> sent = Collections.synchronizedList(new ArrayList<Request>());
+    OkHttpClient client = newClient(new Interceptor() {
+      @Override public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        sent.add(request);
+        if(null != request.header("If-None-Match")) {
+          // The cached body is evicted before the 304 comes back
+          for(ResponseCacheEntity e : new Select().from(ResponseCacheEntity.class).<ResponseCacheEntity>execute()) {
+            if(null != e.getBodyFile()) {
+              new File(e.getBodyFile()).delete();
+            }
+          }
+          return newNotModified(request).build();
+        }
+        return newResponse(request, 200, body).header("ETag", "\"v1\"").build();
+      }
+    });
+    assertEquals(body, client.newCall(new Request.Builder().url(URL).build()).execute().body().string());
+    Thread.sleep(1100);
+
+    Response response = client.newCall(new Request.Builder().url(URL).build()).execute();
+    assertEquals(200, response.code());
+    assertEquals(body, response.body().string());
+    assertEquals(3, sent.size());
+    assertEquals("\"v1\"", sent.get(1).header("If-None-Match"));
+    assertNull(sent.get(2).header("If-None-Match"));
+  }
+
+  /**
+   * Client going through the RequestInterceptor, with the options applied to every GET, to the stand-in server
+   */
+  private OkHttpClient newClient(Interceptor server) {
+    OkHttpClient client = new OkHttpClient();
+    RequestInterceptor interceptor = new RequestInterceptor(new AnonymousAuthTokenProvider(),
+        new RequestManager(client));
+    interceptor.setDefaultCacheOptions(options);
+    client.interceptors().add(interceptor);
+    client.interceptors().add(server);
+    return client;
+  }
+
+  private Response.Builder newNotModified(Request request) {
+    return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(304);
+  }
+
+  private Response.Builder newResponse(Request request, int code, String body) {
+    return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(code)
+        .body(ResponseBody.create(JSON, body));
+  }
+
+  private void cache(Request request, Response response) throws IOException {
+    cacheManager.cacheResponse(request, response, options).body().string();
+  }
+
+  private static class AnonymousAuthTokenProvider implements AuthTokenProvider {
+    @Override public boolean isAuthEnabled() {
+      return false;
+    }
+
+    @Override public boolean isAuthRequired(Request request) {
+      return false;
+    }
+
+    @Override public boolean isAuthReady(Request request) {
+      return true;
+    }
+
+    @Override public String getAppToken() {
+      return null;
+    }
+
+    @Override public String getUserToken() {
+      return null;
+    }
+  }
+}
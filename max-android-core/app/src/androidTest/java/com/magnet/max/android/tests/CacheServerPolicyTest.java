@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+
+public class CacheServerPolicyTest extends AndroidTestCase {
+  private static final String URL = "http://localhost/api/items";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private CacheManager cacheManager;
+  private CacheOptions options;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+    cacheManager = new CacheManager();
+    options = new CacheOptions.Builder().useServerCachePolicy(true).build();
+  }
+
+  @MediumTest
+  public void testMaxAgeOfServer() throws IOException {
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").header("Cache-Control", "max-age=60").build());
+
+    cacheManager.getMemoryCache().clear();
+    Response cached = cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options);
+    assertNotNull(cached);
+    assertEquals("items", cached.body().string());
+  }
+
+  @MediumTest
+  public void testMaxCacheAgeOverridesServer() throws Exception {
+    Request request = new Request.Builder().url(URL).build();
+    Response response = newResponse(request, 200, "items").header("Cache-Control", "no-store").build();
+    CacheOptions maxCacheAge = new CacheOptions.Builder().maxCacheAge(60).useServerCachePolicy(true).build();
+
+    assertFalse(cacheManager.isCacheable(response, options));
+    assertTrue(cacheManager.isCacheable(response, maxCacheAge));
+  }
+
+  @MediumTest
+  public void testNoCacheIsRevalidated() throws Exception {
+    String lastModified = "Mon, 05 Oct 2015 10:00:00 GMT";
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").header("Last-Modified", lastModified)
+        .header("Cache-Control", "no-cache").build());
+    Thread.sleep(10);
+    assertNull(cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options));
+
+    Request conditional = cacheManager.newConditionalRequest(new Request.Builder().url(URL).build(), options);
+    assertNotNull(conditional);
+    assertEquals(lastModified, conditional.header("If-Modified-Since"));
+
+    // Without caching headers in the 304 the stored policy applies, which is still no-cache
+    Response refreshed = cacheManager.refreshCachedResponse(conditional, newNotModified(conditional).build(), options);
+    assertNotNull(refreshed);
+    assertEquals("items", refreshed.body().string());
+    Thread.sleep(10);
+    assertNull(cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options));
+
+    refreshed = cacheManager.refreshCachedResponse(conditional,
+        newNotModified(conditional).header("Expires", "Thu, 01 Jan 2099 00:00:00 GMT").build(), options);
+    assertNotNull(refreshed);
+    assertNotNull(cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options));
+  }
+
+  @MediumTest
+  public void testVaryHeadersMustMatch() throws IOException {
+    Request english = new Request.Builder().url(URL).header("Accept-Language", "en").build();
+    cache(english, newResponse(english, 200, "english").header("Cache-Control", "max-age=60")
+        .header("Vary", "Accept-Language").build());
+
+    Response cached = cacheManager.getCachedResponse(
+        new Request.Builder().url(URL).header("Accept-Language", "en").build(), options);
+    assertNotNull(cached);
+    assertEquals("english", cached.body().string());
+    assertNull(cacheManager.getCachedResponse(
+        new Request.Builder().url(URL).header("Accept-Language", "fr").build(), options));
+  }
+
+  @MediumTest
+  public void testVaryHeadersSurviveDatabaseRoundTrip() throws IOException {
+    Request english = new Request.Builder().url(URL).header("Accept-Language", "en").build();
+    cache(english, newResponse(english, 200, "english").header("Cache-Control", "max-age=60")
+        .header("Vary", "Accept-Language").build());
+
+    // Read back from the database
+    cacheManager.getMemoryCache().clear();
+    Response cached = cacheManager.getCachedResponse(
+        new Request.Builder().url(URL).header("Accept-Language", "en").build(), options);
+    assertNotNull(cached);
+    assertEquals("english", cached.body().string());
+
+    cacheManager.getMemoryCache().clear();
+    assertNull(cacheManager.getCachedResponse(
+        new Request.Builder().url(URL).header("Accept-Language", "fr").build(), options));
+  }
+
+  @MediumTest
+  public void testVaryAllIsNotCacheable() {
+    Request request = new Request.Builder().url(URL).build();
+    assertFalse(cacheManager.isCacheable(newResponse(request, 200, "items").header("Vary", "*").build(), options));
+  }
+
+  private Response.Builder newNotModified(Request request) {
+    return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(304);
+  }
+
+  private Response.Builder newResponse(Request request, int code, String body) {
+    return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(code)
+        .body(ResponseBody.create(JSON, body));
+  }
+
+  /**
+   * The cache is written once the body is fully read
+   */
+  private void cache(Request request, Response response) throws IOException {
+    cacheManager.cacheResponse(request, response, options).body().string();
+  }
+}
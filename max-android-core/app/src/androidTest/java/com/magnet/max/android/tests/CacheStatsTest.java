@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.qos.internal.CacheStats;
+import junit.framework.TestCase;
+
+public class CacheStatsTest extends TestCase {
+  private static final String USERS = "GET api/users/{userId}";
+
+  @SmallTest
+  public void testCountersByEndpoint() {
+    CacheStats stats = new CacheStats();
+    stats.recordHit(USERS, 2000000);
+    stats.recordHit(USERS, 2000000);
+    stats.recordMiss(USERS, 2000000);
+    stats.recordStaleHit(USERS);
+    stats.recordStored(USERS, 1024);
+    stats.recordMiss("GET api/config", 1000000);
+
+    CacheStats.EndpointStats users = stats.getEndpoints().get(USERS);
+    assertEquals(2, users.getHits());
+    assertEquals(1, users.getMisses());
+    assertEquals(1, users.getStaleHits());
+    assertEquals(1024, users.getBytesStored());
+    assertEquals(3, users.getLookupCount());
+    assertEquals(1.0, users.getHitRatio(), 0.001);
+    assertEquals(2.0, users.getAverageLookupMillis(), 0.001);
+    assertEquals(4, stats.getLookupCount());
+  }
+
+  @SmallTest
+  public void testEndpointsAreBounded() {
+    CacheStats stats = new CacheStats();
+    for(int i = 0; i < CacheStats.MAX_ENDPOINTS + 10; i++) {
+      stats.recordMiss("GET api/users/" + i, 0);
+    }
+
+    assertEquals(CacheStats.MAX_ENDPOINTS + 1, stats.getEndpoints().size());
+    assertEquals(10, stats.getEndpoints().get(CacheStats.OTHER_ENDPOINTS).getMisses());
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.qos.internal.CacheWritingSource;
+import com.magnet.max.android.rest.qos.internal.CachedBodyStore;
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+
+public class CacheWritingSourceTest extends TestCase {
+  private static final int MAX_INLINE_SIZE = 1024;
+
+  private File directory;
+  private CachedBodyStore bodyStore;
+  private RecordingListener listener;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    directory = new File(System.getProperty("java.io.tmpdir"), "CacheWritingSourceTest-" + System.nanoTime());
+    bodyStore = new CachedBodyStore(directory);
+    listener = new RecordingListener();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if(null != files) {
+      for(File f : files) {
+        f.delete();
+      }
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  @SmallTest
+  public void testSmallBodyIsCachedInline() throws IOException {
+    BufferedSource source = newSource("small body");
+    assertEquals("small body", source.readUtf8());
+    source.close();
+
+    assertEquals("small body", new String(listener.body, "UTF-8"));
+    assertNull(listener.bodyFile);
+    assertFalse(listener.aborted);
+  }
+
+  @SmallTest
+  public void testLargeBodySpillsToFile() throws IOException {
+    String body = newBody(10 * MAX_INLINE_SIZE);
+    BufferedSource source = newSource(body);
+    assertEquals(body, source.readUtf8());
+    source.close();
+
+    assertNull(listener.body);
+    assertNotNull(listener.bodyFile);
+    assertEquals(body, Okio.buffer(Okio.source(listener.bodyFile)).readUtf8());
+    assertEquals(1, directory.listFiles().length);
+  }
+
+  @SmallTest
+  public void testRestOfBodyIsReadOnClose() throws IOException {
+    String body = newBody(MAX_INLINE_SIZE / 2);
+    BufferedSource source = newSource(body);
+    source.readUtf8(10);
+    source.close();
+
+    assertEquals(body, new String(listener.body, "UTF-8"));
+  }
+
+  private BufferedSource newSource(String body) {
+    return Okio.buffer(new CacheWritingSource(new Buffer().writeUtf8(body), MAX_INLINE_SIZE, listener));
+  }
+
+  private static String newBody(int length) {
+    StringBuilder sb = new StringBuilder();
+    while(sb.length() < length) {
+      sb.append(sb.length() % 10);
+    }
+    return sb.toString();
+  }
+
+  private class RecordingListener implements CacheWritingSource.Listener {
+    private byte[] body;
+    private File bodyFile;
+    private boolean aborted;
+
+    @Override public CachedBodyStore.Writer newFileWriter() throws IOException {
+      return bodyStore.newWriter();
+    }
+
+    @Override public void onComplete(byte[] body, File bodyFile) {
+      this.body = body;
+      this.bodyFile = bodyFile;
+    }
+
+    @Override public void onAbort() {
+      aborted = true;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.qos.internal.CachedBodyStore;
+import java.io.File;
+import java.io.IOException;
+import junit.framework.TestCase;
+import okio.Okio;
+
+public class CachedBodyStoreTest extends TestCase {
+  private File directory;
+  private CachedBodyStore bodyStore;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    directory = new File(System.getProperty("java.io.tmpdir"), "CachedBodyStoreTest-" + System.nanoTime());
+    bodyStore = new CachedBodyStore(directory);
+  }
+
+  @Override protected void tearDown() throws Exception {
+    File[] files = directory.listFiles();
+    if(null != files) {
+      for(File f : files) {
+        f.delete();
+      }
+    }
+    directory.delete();
+    super.tearDown();
+  }
+
+  @SmallTest
+  public void testIdenticalBodiesShareFile() throws IOException {
+    byte[] body = "large body".getBytes("UTF-8");
+    File first = save(body);
+    File second = save(body);
+
+    assertEquals(first, second);
+    assertEquals(1, directory.listFiles().length);
+    assertEquals("large body", Okio.buffer(Okio.source(first)).readUtf8());
+  }
+
+  @SmallTest
+  public void testReusedFileIsTouched() throws IOException {
+    File first = save("large body".getBytes("UTF-8"));
+    long old = System.currentTimeMillis() - 3600 * 1000L;
+    assertTrue(first.setLastModified(old));
+
+    // Not swept as an orphan before the new entry is saved
+    assertEquals(first, save("large body".getBytes("UTF-8")));
+    assertTrue(first.lastModified() > old);
+  }
+
+  @SmallTest
+  public void testDifferentBodiesUseDifferentFiles() throws IOException {
+    File first = save("body 1".getBytes("UTF-8"));
+    File second = save("body 2".getBytes("UTF-8"));
+
+    assertFalse(first.equals(second));
+    assertEquals(2, directory.listFiles().length);
+  }
+
+  private File save(byte[] body) throws IOException {
+    CachedBodyStore.Writer writer = bodyStore.newWriter();
+    writer.write(body);
+    return writer.commit();
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.Base64;
+import com.magnet.max.android.rest.qos.internal.CacheBodyCodec;
+import com.magnet.max.android.rest.qos.internal.CachedResponse;
+import com.magnet.max.android.rest.qos.internal.CachedResponseSerializer;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+public class CachedResponseSerializerTest extends TestCase {
+  private static final String BODY = "{\"userName\":\"jdoe\",\"roles\":[\"USER\"]}";
+
+  private final CachedResponseSerializer serializer = new CachedResponseSerializer();
+  private final Request request = new Request.Builder().url("http://localhost/api/users").build();
+
+  @SmallTest
+  public void testBinaryRoundTrip() throws IOException {
+    Response response = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1)
+        .code(200).message("OK")
+        .header("Content-Type", "application/json")
+        .header("ETag", "\"v1\"")
+        .body(ResponseBody.create(MediaType.parse("application/json"), BODY))
+        .build();
+
+    byte[] serialized = serializer.serialize(new CachedResponse(response));
+    assertNotNull(serialized);
+    // Body is stored raw, only headers and length prefixes are added
+    assertTrue(serialized.length < BODY.length() + 100);
+
+    CachedResponse restored = serializer.deserialize(serialized);
+    assertNotNull(restored);
+    assertFalse(restored.isLegacyFormat());
+    assertEquals(200, restored.getCode());
+    assertEquals("OK", restored.getMessage());
+
+    Response restoredResponse = restored.toResponse(request);
+    assertEquals("\"v1\"", restoredResponse.header("ETag"));
+    assertEquals(BODY, restoredResponse.body().string());
+  }
+
+  @SmallTest
+  public void testDeflatedBodyRoundTrip() throws IOException {
+    StringBuilder sb = new StringBuilder("[");
+    for(int i = 0; i < 100; i++) {
+      sb.append(i > 0 ? "," : "").append(BODY);
+    }
+    String largeBody = sb.append("]").toString();
+    Response response = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1)
+        .code(200).message("OK")
+        .header("Content-Type", "application/json")
+        .build();
+    assertTrue(CacheBodyCodec.isCompressible(response));
+
+    byte[] deflated = CacheBodyCodec.deflate(largeBody.getBytes("UTF-8"));
+    assertNotNull(deflated);
+    assertTrue(deflated.length * 5 < largeBody.length());
+
+    byte[] serialized = serializer.serialize(new CachedResponse(response, deflated, null, CacheBodyCodec.DEFLATE));
+    CachedResponse restored = serializer.deserialize(serialized);
+    assertEquals(CacheBodyCodec.DEFLATE, restored.getCodec());
+    assertEquals(largeBody, restored.toResponse(request).body().string());
+  }
+
+  @SmallTest
+  public void testSmallOrBinaryBodyIsNotCompressed() throws IOException {
+    assertNull(CacheBodyCodec.deflate(BODY.getBytes("UTF-8")));
+
+    Response image = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1)
+        .code(200).message("OK")
+        .header("Content-Type", "image/png")
+        .build();
+    assertFalse(CacheBodyCodec.isCompressible(image));
+  }
+
+  @SmallTest
+  public void testLegacyJsonIsReadable() throws IOException {
+    String legacyJson = "{\"code\":200,\"protocol\":\"http/1.1\",\"message\":\"OK\","
+        + "\"headers\":[\"Content-Type\",\"application/json\"],"
+        + "\"body\":\"" + Base64.encodeToString(BODY.getBytes("UTF-8"), Base64.NO_WRAP) + "\"}";
+
+    CachedResponse restored = serializer.deserialize(legacyJson.getBytes("UTF-8"));
+    assertNotNull(restored);
+    assertTrue(restored.isLegacyFormat());
+    assertEquals(200, restored.getCode());
+    assertEquals(BODY, restored.toResponse(request).body().string());
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Update;
+import com.magnet.max.android.auth.AuthTokenProvider;
+import com.magnet.max.android.connectivity.ConnectivityManager;
+import com.magnet.max.android.rest.ReliableCallOptions;
+import com.magnet.max.android.rest.RequestInterceptor;
+import com.magnet.max.android.rest.RequestManager;
+import com.magnet.max.android.rest.RestConstants;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.ReliableManager;
+import com.magnet.max.android.rest.qos.internal.ReliableRequestEntity;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class IdempotencyKeyTest extends AndroidTestCase {
+  private static final String URL = "http://localhost/api/items";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private ReliableManager reliableManager;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    ConnectivityManager.getInstance(getContext().getApplicationContext());
+    reliableManager = new ReliableManager();
+    reliableManager.clearPendingCalls();
+  }
+
+  @MediumTest
+  public void testReplaySendsKeyOfOriginalAttempt() throws Exception {
+    final List<String> sentKeys = Collections.synchronizedList(new ArrayList<String>());
+    final CountDownLatch firstAttempt = new CountDownLatch(1);
+    final CountDownLatch replay = new CountDownLatch(2);
+    OkHttpClient client = new OkHttpClient();
+    RequestManager requestManager = new RequestManager(client);
+    client.interceptors().add(new RequestInterceptor(new AnonymousAuthTokenProvider(), requestManager));
+    // Stand-in server failing the first attempt
+    client.interceptors().add(new Interceptor() {
+      @Override public Response intercept(Chain chain) throws IOException {
+        sentKeys.add(chain.request().header(RestConstants.IDEMPOTENCY_KEY_HEADER));
+        int code = sentKeys.size() == 1 ? 503 : 200;
+        try {
+          return new Response.Builder().request(chain.request()).protocol(Protocol.HTTP_1_1).code(code)
+              .body(ResponseBody.create(JSON, "{}")).build();
+        } finally {
+          firstAttempt.countDown();
+          replay.countDown();
+        }
+      }
+    });
+
+    Request request = new Request.Builder().url(URL).post(RequestBody.create(JSON, "{\"name\":\"item\"}")).build();
+    requestManager.saveReliableRequest(request, null, null,
+        new ReliableCallOptions.Builder().expiresIn(60).build(), "Waiting for WiFi");
+    ReliableRequestEntity saved = reliableManager.getAllCachedRequestEntities().get(0);
+
+    // The waiting call is sent when WiFi is back
+    requestManager.onConnectivityStatusChanged(ConnectivityManager.TYPE_NOT_CONNECTED, ConnectivityManager.TYPE_WIFI);
+    assertTrue(firstAttempt.await(10, TimeUnit.SECONDS));
+    waitForRetries(saved.getId(), 1);
+
+    // Replayed from the database without waiting for the backoff
+    new Update(ReliableRequestEntity.class).set("nextAttemptAt = ?", 0).where("Id = ?", saved.getId()).execute();
+    requestManager.resendReliableCalls();
+    assertTrue(replay.await(10, TimeUnit.SECONDS));
+
+    assertNotNull(saved.getIdempotencyKey());
+    synchronized (sentKeys) {
+      assertTrue(sentKeys.size() >= 2);
+      for(String key : sentKeys) {
+        assertEquals(saved.getIdempotencyKey(), key);
+      }
+    }
+  }
+
+  /**
+   * The failed attempt is recorded after the response is returned by the server
+   */
+  private void waitForRetries(Long requestId, int retries) throws InterruptedException {
+    for(int i = 0; i < 100; i++) {
+      for(ReliableRequestEntity e : reliableManager.getAllCachedRequestEntities()) {
+        if(e.getId().equals(requestId) && null != e.getRetries() && e.getRetries() >= retries) {
+          return;
+        }
+      }
+      Thread.sleep(50);
+    }
+    fail("Failed attempt of " + requestId + " isn't recorded");
+  }
+
+  private static class AnonymousAuthTokenProvider implements AuthTokenProvider {
+    @Override public boolean isAuthEnabled() {
+      return false;
+    }
+
+    @Override public boolean isAuthRequired(Request request) {
+      return false;
+    }
+
+    @Override public boolean isAuthReady(Request request) {
+      return true;
+    }
+
+    @Override public String getAppToken() {
+      return null;
+    }
+
+    @Override public String getUserToken() {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.PrefetchManifest;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.annotation.CacheKey;
+import com.magnet.max.android.rest.qos.internal.CacheStats;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import retrofit.Callback;
+import retrofit.MagnetCall;
+import retrofit.MagnetRestAdapter;
+import retrofit.http.GET;
+import retrofit.http.Query;
+
+public class PrefetchManifestTest extends AndroidTestCase {
+  private static final String ENDPOINT = "GET api/items";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private MagnetRestAdapter adapter;
+  private ItemService service;
+  private CacheOptions options;
+
+  public interface ItemService {
+    @CacheKey(ignoredParams = {"_ts"})
+    @GET("api/items")
+    MagnetCall<String> getItems(@Query("_ts") long timestamp, @Query("q") String q, Callback<String> callback);
+  }
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+
+    OkHttpClient client = new OkHttpClient();
+    adapter = new MagnetRestAdapter.Builder().client(client).baseUrl("http://localhost/").build();
+    // Stand-in server behind the RequestInterceptor
+    client.interceptors().add(new Interceptor() {
+      @Override public Response intercept(Chain chain) throws IOException {
+        hits.incrementAndGet();
+        return new Response.Builder().request(chain.request()).protocol(Protocol.HTTP_1_1).code(200)
+            .body(ResponseBody.create(JSON, "\"items\"")).build();
+      }
+    });
+    adapter.onAppTokenUpdate("app-token", "app-id", "device-id", null);
+    service = adapter.create(ItemService.class);
+    options = new CacheOptions.Builder().maxCacheAge(60).build();
+  }
+
+  @Override protected void tearDown() throws Exception {
+    adapter.onUserTokenInvalidate(null);
+    super.tearDown();
+  }
+
+  @MediumTest
+  public void testWarmUpUsesCacheKeyOfTheCall() throws Exception {
+    PrefetchManifest manifest = new PrefetchManifest.Builder()
+        .calls(service.getItems(1, "books", new ResultCallback())).cacheOptions(options).build();
+    adapter.setPrefetchManifest(manifest);
+    waitForStores(1);
+    assertEquals(1, hits.get());
+
+    // Served from the warm cache, the timestamp is ignored
+    ResultCallback callback = new ResultCallback();
+    service.getItems(2, "books", callback).executeInBackground(options);
+    assertEquals("items", callback.await());
+    assertEquals(1, hits.get());
+  }
+
+  @MediumTest
+  public void testManifestCanBeWarmedAgain() throws Exception {
+    PrefetchManifest manifest = new PrefetchManifest.Builder()
+        .calls(service.getItems(1, "books", new ResultCallback())).cacheOptions(options).build();
+    adapter.setPrefetchManifest(manifest);
+    waitForStores(1);
+
+    // The calls of the manifest aren't executed themselves, so it's warmed again on user login
+    adapter.onUserTokenUpdate("user-token", "user-id", "device-id", null);
+    for(int i = 0; i < 100 && getEndpointStats().getHits() < 1; i++) {
+      Thread.sleep(50);
+    }
+    assertEquals(1, getEndpointStats().getHits());
+    assertEquals(1, hits.get());
+  }
+
+  private void waitForStores(long count) throws InterruptedException {
+    for(int i = 0; i < 100; i++) {
+      CacheStats.EndpointStats stats = getEndpointStats();
+      if(null != stats && stats.getStores() >= count) {
+        return;
+      }
+      Thread.sleep(50);
+    }
+    fail("Not prefetched into " + ENDPOINT);
+  }
+
+  /**
+   * Stats are recorded under the url template of the Retrofit method
+   */
+  private CacheStats.EndpointStats getEndpointStats() {
+    return adapter.getCacheStats().getEndpoints().get(ENDPOINT);
+  }
+
+  private static class ResultCallback implements Callback<String> {
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicReference<String> result = new AtomicReference<>();
+
+    @Override public void onResponse(retrofit.Response<String> response) {
+      result.set(response.body());
+      done.countDown();
+    }
+
+    @Override public void onFailure(Throwable t) {
+      done.countDown();
+    }
+
+    public String await() throws InterruptedException {
+      done.await(10, TimeUnit.SECONDS);
+      return result.get();
+    }
+  }
+}
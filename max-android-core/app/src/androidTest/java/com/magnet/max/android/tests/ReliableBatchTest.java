@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.magnet.max.android.rest.qos.internal.ReliableBatch;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import junit.framework.TestCase;
+import okio.Buffer;
+
+public class ReliableBatchTest extends TestCase {
+  private static final MediaType JSON = MediaType.parse("application/json");
+  private static final HttpUrl BATCH_ENDPOINT = HttpUrl.parse("http://localhost/api/batch");
+
+  @SmallTest
+  public void testBatchable() {
+    assertTrue(ReliableBatch.isBatchable(new Request.Builder().url("http://localhost/api/items").delete().build()));
+    assertTrue(ReliableBatch.isBatchable(newPost("/api/items", "{\"name\":\"a\"}")));
+    assertFalse(ReliableBatch.isBatchable(new Request.Builder().url("http://localhost/api/photos")
+        .post(RequestBody.create(MediaType.parse("image/png"), new byte[] {1, 2, 3})).build()));
+    assertFalse(ReliableBatch.isBatchable(new Request.Builder().url("http://localhost/api/items")
+        .post(RequestBody.create(JSON, new byte[ReliableBatch.MAX_BODY_SIZE + 1])).build()));
+  }
+
+  @SmallTest
+  public void testRoundTripThroughStandInServer() throws IOException {
+    final List<JsonObject> received = new ArrayList<>();
+    OkHttpClient client = new OkHttpClient();
+    // Stand-in batch server : applies every call, rejects the ones to /api/broken
+    client.interceptors().add(new Interceptor() {
+      @Override public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        assertEquals(BATCH_ENDPOINT, request.httpUrl());
+        Buffer buffer = new Buffer();
+        request.body().writeTo(buffer);
+        JsonArray requests = new JsonParser().parse(buffer.readUtf8()).getAsJsonObject().getAsJsonArray("requests");
+        StringBuilder sb = new StringBuilder("{\"responses\":[");
+        for(int i = 0; i < requests.size(); i++) {
+          JsonObject item = requests.get(i).getAsJsonObject();
+          received.add(item);
+          int status = item.get("url").getAsString().endsWith("/api/broken") ? 503 : 200;
+          sb.append(i > 0 ? "," : "").append("{\"id\":\"").append(item.get("id").getAsString())
+              .append("\",\"status\":").append(status).append("}");
+        }
+        sb.append("]}");
+
+        return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200)
+            .body(ResponseBody.create(JSON, sb.toString())).build();
+      }
+    });
+
+    ReliableBatch batch = new ReliableBatch(BATCH_ENDPOINT);
+    batch.add("k1", newPost("/api/items", "{\"name\":\"a\"}"));
+    batch.add("k2", new Request.Builder().url("http://localhost/api/items/1").delete()
+        .header("Authorization", "Bearer token").header("X-Trace", "t1").addHeader("Accept", "application/json")
+        .addHeader("Accept", "text/plain").build());
+    batch.add("k3", newPost("/api/broken", "{}"));
+    assertEquals(Arrays.asList("k1", "k2", "k3"), batch.getIds());
+
+    Map<String, Integer> statuses = ReliableBatch.parseResults(client.newCall(batch.toRequest()).execute());
+
+    assertEquals(3, received.size());
+    assertEquals("POST", received.get(0).get("method").getAsString());
+    assertEquals("{\"name\":\"a\"}", received.get(0).get("body").getAsString());
+    assertTrue(received.get(0).getAsJsonObject("headers").getAsJsonArray("Content-Type").get(0).getAsString()
+        .startsWith("application/json"));
+    assertEquals("DELETE", received.get(1).get("method").getAsString());
+    JsonObject headers = received.get(1).getAsJsonObject("headers");
+    assertEquals("t1", headers.getAsJsonArray("X-Trace").get(0).getAsString());
+    assertEquals(2, headers.getAsJsonArray("Accept").size());
+    assertEquals("text/plain", headers.getAsJsonArray("Accept").get(1).getAsString());
+    assertNull(received.get(1).getAsJsonObject("headers").get("Authorization"));
+
+    assertEquals(Integer.valueOf(200), statuses.get("k1"));
+    assertEquals(Integer.valueOf(200), statuses.get("k2"));
+    assertEquals(Integer.valueOf(503), statuses.get("k3"));
+  }
+
+  @SmallTest
+  public void testPartialResponse() throws IOException {
+    Map<String, Integer> statuses = ReliableBatch.parseResults(newResponse("{\"responses\":["
+        + "{\"id\":\"k1\",\"status\":201},{\"id\":\"k2\"},{\"id\":\"k3\",\"status\":null},"
+        + "{\"id\":\"k4\",\"status\":0},null,{\"status\":200}]}"));
+
+    assertEquals(Integer.valueOf(201), statuses.get("k1"));
+    // Missing, null and invalid statuses are failures
+    assertFalse(statuses.containsKey("k2"));
+    assertFalse(statuses.containsKey("k3"));
+    assertFalse(statuses.containsKey("k4"));
+    assertFalse(statuses.containsKey("k5"));
+    assertEquals(1, statuses.size());
+  }
+
+  @SmallTest
+  public void testMalformedStatus() {
+    try {
+      ReliableBatch.parseResults(newResponse("{\"responses\":[{\"id\":\"k1\",\"status\":\"done\"}]}"));
+      fail("Malformed status should fail");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @SmallTest
+  public void testInvalidResponse() {
+    try {
+      ReliableBatch.parseResults(newResponse("not json"));
+      fail("Invalid response should fail");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private static Response newResponse(String body) {
+    return new Response.Builder().request(new Request.Builder().url(BATCH_ENDPOINT).build())
+        .protocol(Protocol.HTTP_1_1).code(200).body(ResponseBody.create(JSON, body)).build();
+  }
+
+  private static Request newPost(String path, String json) {
+    return new Request.Builder().url("http://localhost" + path).post(RequestBody.create(JSON, json)).build();
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.qos.internal.ReliableCallScheduler;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class ReliableCallSchedulerTest extends TestCase {
+
+  @SmallTest
+  public void testBackoffIsExponentialAndCapped() {
+    ReliableCallScheduler scheduler = new ReliableCallScheduler(1000, 60 * 1000, new Random(42));
+    assertEquals(0, scheduler.getBackoffDelay(0));
+    for(int i = 0; i < 100; i++) {
+      assertInRange(scheduler.getBackoffDelay(1), 500, 1000);
+      assertInRange(scheduler.getBackoffDelay(3), 2000, 4000);
+      assertInRange(scheduler.getBackoffDelay(7), 30 * 1000, 60 * 1000);
+      assertInRange(scheduler.getBackoffDelay(1000), 30 * 1000, 60 * 1000);
+    }
+  }
+
+  @SmallTest
+  public void testBackoffIsJittered() {
+    ReliableCallScheduler scheduler = new ReliableCallScheduler(1000, 60 * 1000, new Random(42));
+    long first = scheduler.getBackoffDelay(5);
+    boolean jittered = false;
+    for(int i = 0; i < 10 && !jittered; i++) {
+      jittered = scheduler.getBackoffDelay(5) != first;
+    }
+    assertTrue(jittered);
+  }
+
+  @SmallTest
+  public void testNextAttemptAt() {
+    ReliableCallScheduler scheduler = new ReliableCallScheduler(1000, 60 * 1000, new Random(42));
+    long now = System.currentTimeMillis();
+    assertEquals(now, scheduler.getNextAttemptAt(0, now));
+    assertInRange(scheduler.getNextAttemptAt(2, now) - now, 1000, 2000);
+  }
+
+  private static void assertInRange(long value, long min, long max) {
+    assertTrue(value + " isn't in [" + min + ", " + max + "]", value >= min && value <= max);
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Update;
+import com.magnet.max.android.rest.ReliableCallOptions;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.ReliableManager;
+import com.magnet.max.android.rest.qos.internal.ReliableRequestEntity;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReliableManagerTest extends AndroidTestCase {
+  private static final String URL = "http://localhost/api/items";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private ReliableManager reliableManager;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    reliableManager = new ReliableManager();
+    reliableManager.clearPendingCalls();
+  }
+
+  @MediumTest
+  public void testFailedAttemptBacksOffOnlyItsOwnRow() {
+    ReliableRequestEntity first = save(newRequest());
+    ReliableRequestEntity second = save(newRequest());
+    assertEquals(first.getRequestHash(), second.getRequestHash());
+    assertFalse(first.getId().equals(second.getId()));
+
+    assertNotNull(reliableManager.recordFailedAttempt(first.getId(), "HTTP 503"));
+
+    // Both identical calls are still queued, only the failed one backs off
+    List<ReliableRequestEntity> queued = reliableManager.getAllCachedRequestEntities();
+    assertEquals(2, queued.size());
+    assertEquals(1, find(queued, first.getId()).getRetries().intValue());
+    assertEquals("HTTP 503", find(queued, first.getId()).getLastFailureReason());
+    assertEquals(0, find(queued, second.getId()).getRetries().intValue());
+  }
+
+  @MediumTest
+  public void testRemoveLeavesIdenticalCalls() {
+    ReliableRequestEntity first = save(newRequest());
+    ReliableRequestEntity second = save(newRequest());
+
+    reliableManager.removeRequest(first.getId());
+
+    List<ReliableRequestEntity> queued = reliableManager.getAllCachedRequestEntities();
+    assertEquals(1, queued.size());
+    assertEquals(second.getId(), queued.get(0).getId());
+  }
+
+  @MediumTest
+  public void testIdempotencyKeyBackfilledForLegacyRows() {
+    ReliableRequestEntity saved = save(newRequest());
+    assertNotNull(saved.getIdempotencyKey());
+    // As saved before idempotency keys were introduced
+    new Update(ReliableRequestEntity.class).set("idempotencyKey = NULL").where("Id = ?", saved.getId()).execute();
+
+    String key = find(reliableManager.getAllCachedRequestEntities(), saved.getId()).getIdempotencyKey();
+    assertNotNull(key);
+    assertFalse(key.equals(saved.getIdempotencyKey()));
+    // Persisted, so every later attempt sends the same key
+    assertEquals(key, find(reliableManager.getAllCachedRequestEntities(), saved.getId()).getIdempotencyKey());
+  }
+
+  private static ReliableRequestEntity find(List<ReliableRequestEntity> entities, Long id) {
+    for(ReliableRequestEntity e : entities) {
+      if(e.getId().equals(id)) {
+        return e;
+      }
+    }
+
+    fail("Request " + id + " isn't queued");
+    return null;
+  }
+
+  private ReliableRequestEntity save(Request request) {
+    return reliableManager.saveRequest(request, new ReliableCallOptions.Builder().expiresIn(60).build(), null,
+        new ArrayList<ReliableRequestEntity>());
+  }
+
+  private static Request newRequest() {
+    return new Request.Builder().url(URL).post(RequestBody.create(JSON, "{\"name\":\"item\"}")).build();
+  }
+}
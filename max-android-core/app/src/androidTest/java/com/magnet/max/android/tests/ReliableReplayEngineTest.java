@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.qos.internal.ReliableReplayEngine;
+import com.squareup.okhttp.Callback;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+public class ReliableReplayEngineTest extends TestCase {
+  private static final Callback NOOP_CALLBACK = new Callback() {
+    @Override public void onFailure(Request request, IOException e) {
+    }
+
+    @Override public void onResponse(Response response) throws IOException {
+    }
+  };
+
+  private final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+
+  @SmallTest
+  public void testInFlightLimit() {
+    ReliableReplayEngine engine = new ReliableReplayEngine(null);
+    engine.setMaxInFlight(2);
+    for(int i = 0; i < 5; i++) {
+      assertTrue(engine.submit(newTask("r" + i, "host/e" + i, 0, i)));
+    }
+    assertFalse(engine.submit(newTask("r0", "host/e0", 0, 0)));
+    assertEquals(Arrays.asList("r0", "r1"), sent);
+    assertEquals(2, engine.getInFlightCount());
+    assertEquals(3, engine.getQueuedCount());
+
+    engine.onComplete("r0");
+    assertEquals(Arrays.asList("r0", "r1", "r2"), sent);
+    // Not in flight
+    engine.onComplete("r4");
+    assertEquals(3, sent.size());
+  }
+
+  @SmallTest
+  public void testPriorityAndFifoPerEndpoint() {
+    ReliableReplayEngine engine = new ReliableReplayEngine(null);
+    engine.setMaxInFlight(1);
+    engine.submit(newTask("blocker", "host/x", 0, 0));
+    engine.submit(newTask("low", "host/a", -10, 1));
+    engine.submit(newTask("b2", "host/b", 0, 3));
+    engine.submit(newTask("b1", "host/b", 0, 2));
+    engine.submit(newTask("high", "host/c", 10, 4));
+    engine.submit(newTask("b3", "host/b", 10, 5));
+
+    // b3 lifts endpoint b above a, and b keeps its order; high wins the tie with b3 by age
+    for(String hash : new String[] {"blocker", "b1", "b2", "high", "b3", "low"}) {
+      assertEquals(hash, sent.get(sent.size() - 1));
+      engine.onComplete(hash);
+    }
+    assertEquals(Arrays.asList("blocker", "b1", "b2", "high", "b3", "low"), sent);
+  }
+
+  @SmallTest
+  public void testCancelQueuedCall() {
+    ReliableReplayEngine engine = new ReliableReplayEngine(null);
+    engine.setMaxInFlight(1);
+    engine.submit(newTask("r0", "host/profile", 0, 0));
+    engine.submit(newTask("r1", "host/profile", 0, 1));
+    engine.submit(newTask("r2", "host/profile", 0, 2));
+    // In flight
+    assertFalse(engine.cancel("r0"));
+    assertTrue(engine.cancel("r1"));
+    assertFalse(engine.contains("r1"));
+
+    engine.onComplete("r0");
+    assertEquals(Arrays.asList("r0", "r2"), sent);
+  }
+
+  @SmallTest
+  public void testOnlyOtherQueuedCallsPauseReplay() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    OkHttpClient client = new OkHttpClient();
+    client.getDispatcher().setMaxRequests(1);
+    client.interceptors().add(new Interceptor() {
+      @Override public Response intercept(Chain chain) throws IOException {
+        try {
+          release.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new IOException(e);
+        }
+        return new Response.Builder().request(chain.request()).protocol(Protocol.HTTP_1_1).code(200).build();
+      }
+    });
+    ReliableReplayEngine engine = new ReliableReplayEngine(client.getDispatcher());
+    engine.setMaxInFlight(3);
+
+    try {
+      // Takes the only slot of the Dispatcher
+      client.newCall(newRequest()).enqueue(NOOP_CALLBACK);
+      // Own replays queued in the Dispatcher don't pause replay
+      engine.submit(newHttpTask(client, "r0", "host/a"));
+      engine.submit(newHttpTask(client, "r1", "host/b"));
+      assertEquals(Arrays.asList("r0", "r1"), sent);
+      assertEquals(2, client.getDispatcher().getQueuedCallCount());
+
+      // An interactive call queued does
+      client.newCall(newRequest()).enqueue(NOOP_CALLBACK);
+      engine.submit(newHttpTask(client, "r2", "host/c"));
+      assertEquals(Arrays.asList("r0", "r1"), sent);
+    } finally {
+      release.countDown();
+    }
+  }
+
+  private ReliableReplayEngine.Task newHttpTask(final OkHttpClient client, final String key, String endpoint) {
+    return new ReliableReplayEngine.Task(key, endpoint, 0, sent.size()) {
+      @Override protected void send() {
+        sent.add(key);
+        client.newCall(newRequest()).enqueue(NOOP_CALLBACK);
+      }
+    };
+  }
+
+  private static Request newRequest() {
+    return new Request.Builder().url("http://localhost/api/items").build();
+  }
+
+  private ReliableReplayEngine.Task newTask(final String hash, String endpoint, int priority, long createdAt) {
+    return new ReliableReplayEngine.Task(hash, endpoint, priority, createdAt) {
+      @Override protected void send() {
+        sent.add(hash);
+      }
+    };
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.qos.internal.RequestCoalescer;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+public class RequestCoalescerTest extends TestCase {
+  private static final String KEY = "GET http://localhost/api/config";
+  private static final int CALLERS = 4;
+
+  private final RequestCoalescer coalescer = new RequestCoalescer();
+  private final Request request = new Request.Builder().url("http://localhost/api/config").build();
+
+  @SmallTest
+  public void testConcurrentCallsShareOneNetworkCall() throws Exception {
+    final AtomicInteger networkCalls = new AtomicInteger();
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch done = new CountDownLatch(CALLERS);
+    final String[] bodies = new String[CALLERS];
+
+    for(int i = 0; i < CALLERS; i++) {
+      final int index = i;
+      new Thread(new Runnable() {
+        @Override public void run() {
+          try {
+            Response response = coalescer.execute(KEY, request, 0, new RequestCoalescer.NetworkCall() {
+              @Override public Response proceed() throws IOException {
+                networkCalls.incrementAndGet();
+                try {
+                  release.await();
+                } catch (InterruptedException e) {
+                  throw new IOException(e);
+                }
+                return newResponse("config");
+              }
+            });
+            bodies[index] = response.body().string();
+          } catch (IOException e) {
+            e.printStackTrace();
+          } finally {
+            done.countDown();
+          }
+        }
+      }).start();
+    }
+
+    // Wait until every caller has joined the flight
+    while(coalescer.getInFlightCount() == 0) {
+      Thread.sleep(10);
+    }
+    Thread.sleep(200);
+    release.countDown();
+
+    assertTrue(done.await(5, TimeUnit.SECONDS));
+    assertEquals(1, networkCalls.get());
+    for(String body : bodies) {
+      assertEquals("config", body);
+    }
+    assertEquals(0, coalescer.getInFlightCount());
+  }
+
+  @SmallTest
+  public void testFailureIsPropagated() {
+    try {
+      coalescer.execute(KEY, request, 0, new RequestCoalescer.NetworkCall() {
+        @Override public Response proceed() throws IOException {
+          throw new IOException("offline");
+        }
+      });
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertEquals("offline", e.getMessage());
+    }
+    assertEquals(0, coalescer.getInFlightCount());
+  }
+
+  @SmallTest
+  public void testWaiterTimesOut() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread leader = startLeader(release);
+    try {
+      coalescer.execute(KEY, request, 100, new RequestCoalescer.NetworkCall() {
+        @Override public Response proceed() throws IOException {
+          throw new AssertionError("Waiter shouldn't make the network call");
+        }
+      });
+      fail("SocketTimeoutException expected");
+    } catch (SocketTimeoutException e) {
+      // Expected
+    } finally {
+      release.countDown();
+      leader.join(5000);
+    }
+  }
+
+  @SmallTest
+  public void testInterruptedWaiterFails() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Thread leader = startLeader(release);
+    Thread.currentThread().interrupt();
+    try {
+      coalescer.execute(KEY, request, 0, new RequestCoalescer.NetworkCall() {
+        @Override public Response proceed() throws IOException {
+          throw new AssertionError("Waiter shouldn't make the network call");
+        }
+      });
+      fail("InterruptedIOException expected");
+    } catch (InterruptedIOException e) {
+      // Interrupt status is kept
+      assertTrue(Thread.interrupted());
+    } finally {
+      release.countDown();
+      leader.join(5000);
+    }
+  }
+
+  @SmallTest
+  public void testKeyDependsOnHeadersOnTheWire() {
+    Request userA = request.newBuilder().header("Authorization", "Bearer a").build();
+    Request userB = request.newBuilder().header("Authorization", "Bearer b").build();
+    Request range = userA.newBuilder().header("Range", "bytes=0-99").build();
+
+    assertEquals(RequestCoalescer.getKey(request, userA),
+        RequestCoalescer.getKey(request, userA.newBuilder().build()));
+    assertFalse(RequestCoalescer.getKey(request, userA).equals(RequestCoalescer.getKey(request, userB)));
+    assertFalse(RequestCoalescer.getKey(request, userA).equals(RequestCoalescer.getKey(request, range)));
+    assertFalse(RequestCoalescer.getKey(request, request).equals(RequestCoalescer.getKey(request,
+        request.newBuilder().url("http://localhost/mock/api/config").build())));
+  }
+
+  /**
+   * Start a call which is in flight until released
+   */
+  private Thread startLeader(final CountDownLatch release) throws InterruptedException {
+    Thread leader = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          coalescer.execute(KEY, request, 0, new RequestCoalescer.NetworkCall() {
+            @Override public Response proceed() throws IOException {
+              try {
+                release.await();
+              } catch (InterruptedException e) {
+                throw new IOException(e);
+              }
+              return newResponse("config");
+            }
+          }).body().close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    });
+    leader.start();
+    while(coalescer.getInFlightCount() == 0) {
+      Thread.sleep(10);
+    }
+
+    return leader;
+  }
+
+  private Response newResponse(String body) {
+    return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200).message("OK")
+        .body(ResponseBody.create(MediaType.parse("text/plain"), body)).build();
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+import com.magnet.max.android.rest.qos.internal.CacheUtils;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.internal.Util;
+import java.io.IOException;
+import junit.framework.TestCase;
+import okio.Buffer;
+
+/**
+ * Micro-benchmark of the request hash, one call used to hash the same request four times.
+ * The timings are only logged, wall-clock comparisons are too noisy to assert on.
+ */
+public class RequestHashBenchmarkTest extends TestCase {
+  private static final String TAG = RequestHashBenchmarkTest.class.getSimpleName();
+
+  private static final int ITERATIONS = 2000;
+  private static final int LOOKUPS_PER_CALL = 4;
+
+  @MediumTest
+  public void testMemoizedHashIsCompatible() throws IOException {
+    StringBuilder json = new StringBuilder("{\"userIds\":[");
+    for(int i = 0; i < 100; i++) {
+      json.append(i > 0 ? "," : "").append("\"user-").append(i).append("\"");
+    }
+    json.append("]}");
+    RequestBody body = RequestBody.create(MediaType.parse("application/json"), json.toString());
+
+    // Same value as before memoization
+    Request sample = newRequest(body, 0);
+    assertEquals(legacyHash(sample), CacheUtils.getRequestHash(sample));
+    // Computed once per request
+    assertSame(CacheUtils.getRequestHash(sample), CacheUtils.getRequestHash(sample));
+
+    // Warm up
+    for(int i = 0; i < ITERATIONS / 10; i++) {
+      legacyHash(newRequest(body, i));
+      CacheUtils.getRequestHash(newRequest(body, i));
+    }
+
+    long legacyStart = System.nanoTime();
+    for(int i = 0; i < ITERATIONS; i++) {
+      Request request = newRequest(body, i);
+      for(int j = 0; j < LOOKUPS_PER_CALL; j++) {
+        legacyHash(request);
+      }
+    }
+    long legacyTime = System.nanoTime() - legacyStart;
+
+    long memoizedStart = System.nanoTime();
+    for(int i = 0; i < ITERATIONS; i++) {
+      Request request = newRequest(body, i);
+      for(int j = 0; j < LOOKUPS_PER_CALL; j++) {
+        CacheUtils.getRequestHash(request);
+      }
+    }
+    long memoizedTime = System.nanoTime() - memoizedStart;
+
+    Log.d(TAG, "Request hash of " + ITERATIONS + " calls : legacy = " + legacyTime / 1000000 + " ms, memoized = "
+        + memoizedTime / 1000000 + " ms");
+  }
+
+  private static Request newRequest(RequestBody body, int i) {
+    return new Request.Builder().url("http://localhost/api/users/query?page=" + i).post(body).build();
+  }
+
+  /**
+   * The hash as computed before : copy the body, decode it and MD5 the concatenated string
+   */
+  private static String legacyHash(Request request) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(request.method()).append(request.urlString());
+    Buffer buffer = new Buffer();
+    Request copy = request.newBuilder().build();
+    copy.body().writeTo(buffer);
+    sb.append(buffer.readUtf8());
+    return Util.md5Hex(sb.toString());
+  }
+}
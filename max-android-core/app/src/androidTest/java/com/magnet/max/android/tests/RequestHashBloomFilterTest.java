@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.suitebuilder.annotation.SmallTest;
+import com.magnet.max.android.rest.qos.internal.RequestHashBloomFilter;
+import junit.framework.TestCase;
+import okio.ByteString;
+
+public class RequestHashBloomFilterTest extends TestCase {
+  private static final int ENTRIES = 1000;
+
+  @SmallTest
+  public void testNoFalseNegatives() {
+    RequestHashBloomFilter filter = new RequestHashBloomFilter(ENTRIES);
+    for(int i = 0; i < ENTRIES; i++) {
+      filter.add(hash("GET http://localhost/api/users/" + i));
+    }
+
+    for(int i = 0; i < ENTRIES; i++) {
+      assertTrue(filter.mightContain(hash("GET http://localhost/api/users/" + i)));
+    }
+  }
+
+  @SmallTest
+  public void testFalsePositiveRate() {
+    RequestHashBloomFilter filter = new RequestHashBloomFilter(ENTRIES);
+    for(int i = 0; i < ENTRIES; i++) {
+      filter.add(hash("GET http://localhost/api/users/" + i));
+    }
+
+    int falsePositives = 0;
+    int lookups = 10000;
+    for(int i = 0; i < lookups; i++) {
+      if(filter.mightContain(hash("GET http://localhost/api/channels/" + i))) {
+        falsePositives++;
+      }
+    }
+
+    assertTrue("False positives " + falsePositives, falsePositives < lookups * 0.03);
+  }
+
+  @SmallTest
+  public void testEmptyFilterContainsNothing() {
+    RequestHashBloomFilter filter = new RequestHashBloomFilter(ENTRIES);
+    assertFalse(filter.mightContain(hash("GET http://localhost/api/users")));
+  }
+
+  private static String hash(String s) {
+    return ByteString.encodeUtf8(s).md5().hex();
+  }
+}
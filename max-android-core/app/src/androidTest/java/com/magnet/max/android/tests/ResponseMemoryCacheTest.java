@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.magnet.max.android.rest.qos.internal.ResponseMemoryCache;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+
+public class ResponseMemoryCacheTest extends AndroidTestCase {
+  private static final String HOST = "http://localhost";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private ResponseMemoryCache memoryCache;
+  private CacheManager cacheManager;
+  private CacheOptions options;
+  private CacheOptions offlineOptions;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+    memoryCache = new ResponseMemoryCache(2000);
+    cacheManager = new CacheManager(memoryCache, null);
+    options = new CacheOptions.Builder().maxCacheAge(60).build();
+    offlineOptions = new CacheOptions.Builder().maxCacheAge(60).alwaysUseCacheIfOffline(true).build();
+  }
+
+  @MediumTest
+  public void testHitAndMiss() throws IOException {
+    cache("/api/items", "items", options);
+
+    assertEquals("items", getCached("/api/items", options).body().string());
+    assertEquals(1, memoryCache.getHitCount());
+    assertEquals(0, memoryCache.getMissCount());
+
+    assertNull(getCached("/api/users", options));
+    assertEquals(1, memoryCache.getMissCount());
+  }
+
+  @MediumTest
+  public void testEviction() throws IOException {
+    cache("/api/items", repeat('i', 1000), options);
+    cache("/api/users", repeat('u', 1000), options);
+    assertEquals(1, memoryCache.getEvictionCount());
+    assertEquals(1, memoryCache.getSize());
+
+    // Evicted from memory but still in the database
+    assertEquals(repeat('i', 1000), getCached("/api/items", options).body().string());
+    assertEquals(1, memoryCache.getMissCount());
+  }
+
+  @MediumTest
+  public void testOfflineCacheIsNotKeptInMemory() throws IOException {
+    cache("/api/items", "offline items", offlineOptions);
+    assertEquals(0, memoryCache.getSize());
+
+    // Still found in the database
+    assertEquals("offline items", getCached("/api/items", options).body().string());
+    assertEquals(0, memoryCache.getSize());
+  }
+
+  @MediumTest
+  public void testOfflineLookupSkipsMemory() throws IOException {
+    cache("/api/items", "items", options);
+
+    assertEquals("items", getCached("/api/items", offlineOptions).body().string());
+    assertEquals(0, memoryCache.getHitCount());
+    assertEquals(0, memoryCache.getMissCount());
+  }
+
+  private Response getCached(String path, CacheOptions options) {
+    return cacheManager.getCachedResponse(new Request.Builder().url(HOST + path).build(), options);
+  }
+
+  /**
+   * The cache is written once the body is fully read
+   */
+  private void cache(String path, String body, CacheOptions options) throws IOException {
+    Request request = new Request.Builder().url(HOST + path).build();
+    Response response = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200)
+        .body(ResponseBody.create(JSON, body)).build();
+    cacheManager.cacheResponse(request, response, options).body().string();
+  }
+
+  private static String repeat(char c, int count) {
+    StringBuilder sb = new StringBuilder(count);
+    for(int i = 0; i < count; i++) {
+      sb.append(c);
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.magnet.max.android.auth.AuthTokenProvider;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.RequestInterceptor;
+import com.magnet.max.android.rest.RequestManager;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+
+public class StaleIfErrorTest extends AndroidTestCase {
+  private static final String URL = "http://localhost/api/items";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private StandInServer server;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+    server = new StandInServer();
+  }
+
+  @MediumTest
+  public void testStaleIfErrorOnNetworkFailure() throws Exception {
+    OkHttpClient client = newClient(new CacheOptions.Builder().maxCacheAge(1).staleIfError(60).build());
+    server.respond(200, "items");
+    assertEquals("items", get(client).body().string());
+    Thread.sleep(1100);
+
+    server.fail(new IOException("offline"));
+    Response response = get(client);
+    assertEquals(200, response.code());
+    assertEquals("items", response.body().string());
+  }
+
+  @MediumTest
+  public void testStaleIfErrorOnServerError() throws Exception {
+    OkHttpClient client = newClient(new CacheOptions.Builder().maxCacheAge(1).staleIfError(60).build());
+    server.respond(200, "items");
+    assertEquals("items", get(client).body().string());
+    Thread.sleep(1100);
+
+    server.respond(503, "unavailable");
+    Response response = get(client);
+    assertEquals(200, response.code());
+    assertEquals("items", response.body().string());
+  }
+
+  @MediumTest
+  public void testNoStaleIfErrorBeyondMaxStale() throws Exception {
+    OkHttpClient client = newClient(new CacheOptions.Builder().maxCacheAge(1).staleIfError(1).build());
+    server.respond(200, "items");
+    assertEquals("items", get(client).body().string());
+    Thread.sleep(2100);
+
+    server.respond(503, "unavailable");
+    Response response = get(client);
+    assertEquals(503, response.code());
+    response.body().close();
+
+    server.fail(new IOException("offline"));
+    try {
+      get(client);
+      fail("IOException expected");
+    } catch (IOException e) {
+      assertEquals("offline", e.getMessage());
+    }
+  }
+
+  @MediumTest
+  public void testNegativeCache() throws Exception {
+    OkHttpClient client = newClient(new CacheOptions.Builder().maxCacheAge(60).negativeCacheAge(1).build());
+    server.respond(404, "not found");
+    Response response = get(client);
+    assertEquals(404, response.code());
+    assertEquals("not found", response.body().string());
+
+    // Served from the cache until negativeCacheAge is over
+    server.respond(200, "items");
+    response = get(client);
+    assertEquals(404, response.code());
+    assertEquals("not found", response.body().string());
+    Thread.sleep(1100);
+
+    assertEquals("items", get(client).body().string());
+  }
+
+  @MediumTest
+  public void testNoNegativeCacheByDefault() throws Exception {
+    OkHttpClient client = newClient(new CacheOptions.Builder().maxCacheAge(60).build());
+    server.respond(404, "not found");
+    Response response = get(client);
+    assertEquals(404, response.code());
+    assertEquals("not found", response.body().string());
+
+    server.respond(200, "items");
+    assertEquals("items", get(client).body().string());
+  }
+
+  private Response get(OkHttpClient client) throws IOException {
+    return client.newCall(new Request.Builder().url(URL).build()).execute();
+  }
+
+  /**
+   * Client going through the RequestInterceptor, with the options applied to every GET, to the stand-in server
+   */
+  private OkHttpClient newClient(CacheOptions options) {
+    OkHttpClient client = new OkHttpClient();
+    RequestInterceptor interceptor = new RequestInterceptor(new AnonymousAuthTokenProvider(),
+        new RequestManager(client));
+    interceptor.setDefaultCacheOptions(options);
+    client.interceptors().add(interceptor);
+    client.interceptors().add(server);
+    return client;
+  }
+
+  /**
+   * Answers every request with the given response or fails it
+   */
+  private static class StandInServer implements Interceptor {
+    private volatile int code;
+    private volatile String body;
+    private volatile IOException error;
+
+    public void respond(int code, String body) {
+      this.code = code;
+      this.body = body;
+      this.error = null;
+    }
+
+    public void fail(IOException error) {
+      this.error = error;
+    }
+
+    @Override public Response intercept(Chain chain) throws IOException {
+      if(null != error) {
+        throw error;
+      }
+
+      return new Response.Builder().request(chain.request()).protocol(Protocol.HTTP_1_1).code(code)
+          .body(ResponseBody.create(JSON, body)).build();
+    }
+  }
+
+  private static class AnonymousAuthTokenProvider implements AuthTokenProvider {
+    @Override public boolean isAuthEnabled() {
+      return false;
+    }
+
+    @Override public boolean isAuthRequired(Request request) {
+      return false;
+    }
+
+    @Override public boolean isAuthReady(Request request) {
+      return true;
+    }
+
+    @Override public String getAppToken() {
+      return null;
+    }
+
+    @Override public String getUserToken() {
+      return null;
+    }
+  }
+}
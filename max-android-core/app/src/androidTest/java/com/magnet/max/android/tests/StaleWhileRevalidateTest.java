@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.CallOptions;
+import com.magnet.max.android.rest.RequestManager;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.CacheUtils;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class StaleWhileRevalidateTest extends AndroidTestCase {
+  private static final String URL = "http://localhost/api/items";
+  private static final MediaType JSON = MediaType.parse("application/json");
+
+  private CacheManager cacheManager;
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+    cacheManager = new CacheManager();
+  }
+
+  @MediumTest
+  public void testStaleResponseWithinWindow() throws Exception {
+    CacheOptions options = new CacheOptions.Builder().maxCacheAge(1).staleWhileRevalidate(60).build();
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").build(), options);
+    Thread.sleep(1100);
+
+    // One lookup serves both checks
+    Request call = new Request.Builder().url(URL).build();
+    CacheManager.CacheLookup lookup = cacheManager.lookup(call, options);
+    assertNotNull(lookup.getEntity());
+    assertNull(cacheManager.getCachedResponse(call, options, lookup));
+    Response stale = cacheManager.getStaleResponse(call, options, lookup);
+    assertNotNull(stale);
+    assertEquals("items", stale.body().string());
+  }
+
+  @MediumTest
+  public void testNoStaleResponseOutOfWindow() throws Exception {
+    CacheOptions options = new CacheOptions.Builder().maxCacheAge(1).staleWhileRevalidate(1).build();
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").build(), options);
+    Thread.sleep(2100);
+
+    assertNull(cacheManager.getStaleResponse(new Request.Builder().url(URL).build(), options));
+  }
+
+  @MediumTest
+  public void testNoStaleResponseWithoutOption() throws Exception {
+    CacheOptions options = new CacheOptions.Builder().maxCacheAge(1).build();
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 200, "items").build(), options);
+    Thread.sleep(1100);
+
+    assertNull(cacheManager.getStaleResponse(new Request.Builder().url(URL).build(), options));
+  }
+
+  @MediumTest
+  public void testNegativeCacheIsNotServedStale() throws Exception {
+    CacheOptions options = new CacheOptions.Builder().maxCacheAge(60).negativeCacheAge(1).staleWhileRevalidate(60)
+        .build();
+    Request request = new Request.Builder().url(URL).build();
+    cache(request, newResponse(request, 404, "not found").build(), options);
+    assertNotNull(cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options));
+    Thread.sleep(1100);
+
+    assertNull(cacheManager.getCachedResponse(new Request.Builder().url(URL).build(), options));
+    assertNull(cacheManager.getStaleResponse(new Request.Builder().url(URL).build(), options));
+  }
+
+  @MediumTest
+  public void testRefreshHasItsOwnRequestAndOptions() throws Exception {
+    final List<Request> sent = Collections.synchronizedList(new ArrayList<Request>());
+    final List<CallOptions> sentOptions = Collections.synchronizedList(new ArrayList<CallOptions>());
+    final CountDownLatch done = new CountDownLatch(1);
+    OkHttpClient client = new OkHttpClient();
+    final RequestManager requestManager = new RequestManager(client);
+    client.interceptors().add(new Interceptor() {
+      @Override public Response intercept(Chain chain) throws IOException {
+        sent.add(chain.request());
+        sentOptions.add(requestManager.getRequestOptions(chain.request()));
+        done.countDown();
+        return newResponse(chain.request(), 200, "items").build();
+      }
+    });
+
+    CacheOptions options = new CacheOptions.Builder().maxCacheAge(1).staleWhileRevalidate(60).tags("items").build();
+    Request request = new Request.Builder().url(URL).build();
+    CallOptions callOptions = new CallOptions(options);
+    requestManager.saveRequestOptions(request, callOptions);
+    requestManager.refreshCacheInBackground(request, options);
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    assertNotSame(request, sent.get(0));
+    assertEquals(CacheUtils.getRequestHash(request), CacheUtils.getRequestHash(sent.get(0)));
+    CacheOptions refreshOptions = sentOptions.get(0).getCacheOptions();
+    assertEquals(0, refreshOptions.getStaleWhileRevalidate());
+    assertEquals(1, refreshOptions.getMaxCacheAge());
+    assertEquals(options.getTags(), refreshOptions.getTags());
+    // The caller's options are untouched
+    assertSame(callOptions, requestManager.getRequestOptions(request));
+    assertEquals(60, options.getStaleWhileRevalidate());
+  }
+
+  private Response.Builder newResponse(Request request, int code, String body) {
+    return new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(code)
+        .body(ResponseBody.create(JSON, body));
+  }
+
+  private void cache(Request request, Response response, CacheOptions options) throws IOException {
+    cacheManager.cacheResponse(request, response, options).body().string();
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.tests;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+import com.activeandroid.query.Delete;
+import com.activeandroid.query.Select;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Protocol;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+
+public class SystemDataStoreTest extends AndroidTestCase {
+  private static final String URL = "http://localhost/api/items";
+
+  @Override protected void setUp() throws Exception {
+    super.setUp();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    new Delete().from(ResponseCacheEntity.class).execute();
+  }
+
+  @MediumTest
+  public void testCacheOfOlderCacheKeyIsPurged() throws IOException {
+    cache();
+    // As before the cache key version was recorded
+    getContext().getApplicationContext().getSharedPreferences("magnet_system_data_store", Context.MODE_PRIVATE)
+        .edit().clear().commit();
+
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    assertEquals(0, new Select().from(ResponseCacheEntity.class).count());
+
+    // Only once
+    cache();
+    SystemDataStore.initialize(getContext().getApplicationContext(), false);
+    assertEquals(1, new Select().from(ResponseCacheEntity.class).count());
+  }
+
+  /**
+   * The cache is written once the body is fully read
+   */
+  private void cache() throws IOException {
+    CacheOptions options = new CacheOptions.Builder().maxCacheAge(60).build();
+    Request request = new Request.Builder().url(URL).build();
+    Response response = new Response.Builder().request(request).protocol(Protocol.HTTP_1_1).code(200)
+        .body(ResponseBody.create(MediaType.parse("application/json"), "items")).build();
+    new CacheManager().cacheResponse(request, response, options).body().string();
+  }
+}
@@ -23,6 +23,10 @@ import com.magnet.max.android.auth.model.ApplicationToken;
 import com.magnet.max.android.auth.model.DeviceInfo;
 import com.magnet.max.android.config.MaxAndroidConfig;
 import com.magnet.max.android.config.MaxAndroidPropertiesConfig;
+import com.magnet.max.android.rest.CacheInvalidationRule;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.PrefetchManifest;
+import com.magnet.max.android.rest.qos.internal.CacheStats;
 import com.magnet.max.android.util.AuthUtil;
 import com.magnet.max.android.util.StringUtil;
 import com.squareup.okhttp.OkHttpClient;
@@ -72,6 +76,26 @@ import retrofit.Response;
     restAdapter.clearPendingCalls();
   }
 
+  public void invalidateCache(String... tags) {
+    restAdapter.invalidateCache(tags);
+  }
+
+  public void addCacheInvalidationRule(CacheInvalidationRule rule) {
+    restAdapter.addCacheInvalidationRule(rule);
+  }
+
+  public void clearUserCache(String userId) {
+    restAdapter.clearUserCache(userId);
+  }
+
+  public void setPrefetchManifest(PrefetchManifest manifest) {
+    restAdapter.setPrefetchManifest(manifest);
+  }
+
+  public CacheStats getCacheStats() {
+    return restAdapter.getCacheStats();
+  }
+
   private void init() {
     if (null == applicationService) {
       applicationService = restAdapter.create(ApplicationService.class);
@@ -223,6 +247,19 @@ import retrofit.Response;
       sharedConfig.put("clientId", config.getClientId());
       sharedConfig.put("clientSecret", config.getClientSecret());
       ((MaxModule) restAdapter).onInit(applicationContext, sharedConfig, null);
+      restAdapter.scheduleCacheCompaction(config.getCacheMaxSize(), config.getCacheMaxEntries());
+      if(config.getCacheStatsReportInterval() > 0) {
+        restAdapter.scheduleCacheStatsReport(config.getCacheStatsReportInterval());
+      }
+      if(config.getReliableMaxConcurrentReplays() > 0) {
+        restAdapter.setMaxConcurrentReplays(config.getReliableMaxConcurrentReplays());
+      }
+      if(StringUtil.isNotEmpty(config.getReliableBatchEndpoint())) {
+        restAdapter.setReliableBatchEndpoint(config.getReliableBatchEndpoint(), config.getReliableBatchMaxSize());
+      }
+      if(config.isServerCachePolicyEnabled()) {
+        restAdapter.setDefaultCacheOptions(new CacheOptions.Builder().useServerCachePolicy(true).build());
+      }
 
       //ensureSaneDefaults();
       return new MagnetServiceAdapter(applicationContext, config, restAdapter);
@@ -19,13 +19,20 @@ import android.content.Context;
 import android.util.Log;
 import com.magnet.max.android.config.MaxAndroidConfig;
 import com.magnet.max.android.connectivity.ConnectivityManager;
+import com.magnet.max.android.rest.CacheInvalidationRule;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.PrefetchManifest;
+import com.magnet.max.android.rest.qos.Condition;
+import com.magnet.max.android.rest.qos.internal.CacheStats;
 import com.magnet.max.android.rest.SystemDataStore;
 import com.magnet.max.android.util.MagnetUtils;
 import com.magnet.max.android.util.StringUtil;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import retrofit.MagnetCall;
 
 final public class MaxCore {
   private static final String TAG = MaxCore.class.getSimpleName();
@@ -95,6 +102,14 @@ final public class MaxCore {
     return mApplicationContext;
   }
 
+  /**
+   * Get id of the logged in user
+   * @return null if no user is logged in
+   */
+  public static String getUserId() {
+    return ModuleManager.getUserId();
+  }
+
   /**
    * Register a MAX module {@link MaxModule}
    * @param module
@@ -168,4 +183,57 @@ final public class MaxCore {
     }
     return result;
   }
+
+  /**
+   * Remove all cached responses with any of the tags
+   * @param tags see {@link com.magnet.max.android.rest.CacheOptions.Builder#tags(String...)}
+   */
+  public static void invalidateCache(String... tags) {
+    mServiceAdapter.invalidateCache(tags);
+  }
+
+  /**
+   * Execute the calls one by one in background at low priority to fill the cache, their callbacks aren't called.
+   * Screens opened later are then served from the cache.
+   * @param calls
+   * @param options
+   * @param conditions e.g. {@link com.magnet.max.android.rest.qos.conditions.WifiCondition}, the calls are skipped if any isn't met
+   */
+  public static void prefetch(List<MagnetCall<?>> calls, CacheOptions options, Condition... conditions) {
+    for(MagnetCall<?> call : calls) {
+      call.prefetch(options, conditions);
+    }
+  }
+
+  /**
+   * Endpoints to prefetch once the app token is available and when a user logs in, see {@link PrefetchManifest}
+   * @param manifest
+   */
+  public static void setPrefetchManifest(PrefetchManifest manifest) {
+    mServiceAdapter.setPrefetchManifest(manifest);
+  }
+
+  /**
+   * Counters of the response cache by endpoint : hits, misses, stale hits, offline hits, bytes stored and lookup latency
+   * @return
+   */
+  public static CacheStats getCacheStats() {
+    return mServiceAdapter.getCacheStats();
+  }
+
+  /**
+   * Remove cached responses of the user, shared responses are kept
+   * @param userId
+   */
+  public static void clearUserCache(String userId) {
+    mServiceAdapter.clearUserCache(userId);
+  }
+
+  /**
+   * Invalidate cached responses automatically when a mutating call matching the rule succeeds
+   * @param rule
+   */
+  public static void addCacheInvalidationRule(CacheInvalidationRule rule) {
+    mServiceAdapter.addCacheInvalidationRule(rule);
+  }
 }
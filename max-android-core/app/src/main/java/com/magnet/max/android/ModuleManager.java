@@ -246,6 +246,8 @@ import java.util.concurrent.atomic.AtomicReference;
   public static void onUserLogout(final String userId) {
     Log.i(TAG, "onUserLogout  : ");
 
+    String cacheOwner = null != userId ? userId : mUserIdRef.get();
+
     mUserTokenRef.set(null);
 
     mUserIdRef.set(null);
@@ -255,6 +257,10 @@ import java.util.concurrent.atomic.AtomicReference;
     mTokenLocalStore.updateForUserLogout();
 
     mToRememberMeRef.set(false);
+
+    if(null != cacheOwner && null != MaxCore.getConfig() && MaxCore.getConfig().isUserCacheDroppedOnLogout()) {
+      MaxCore.clearUserCache(cacheOwner);
+    }
   }
 
   public static void onTokenInvalid(String token) {
@@ -16,6 +16,7 @@
 
 package com.magnet.max.android.config;
 
+import android.util.Log;
 import com.magnet.max.android.util.StringUtil;
 import java.util.HashMap;
 import java.util.Map;
@@ -24,6 +25,7 @@ import java.util.Map;
  * This abstract class defines properties needed to initialize Magnet Max
  */
 public abstract class MaxAndroidConfig {
+  private static final String TAG = MaxAndroidConfig.class.getSimpleName();
   private static final String DEFAULT_BASE_URL = "https://sandbox.magnet.com/mobile/api";
 
   public static final String PROP_CLIENT_ID = "client_id";
@@ -31,6 +33,20 @@ public abstract class MaxAndroidConfig {
   public static final String PROP_BASE_URL = "baseUrl";
   public static final String PROP_SCOPE = "scope";
   public static final String PROP_GCM_SENDER_ID = "mmx-gcmSenderId";
+  public static final String PROP_CACHE_MAX_SIZE = "cache-maxSize";
+  public static final String PROP_CACHE_MAX_ENTRIES = "cache-maxEntries";
+  public static final String PROP_CACHE_SERVER_POLICY = "cache-serverPolicy";
+  public static final String PROP_CACHE_DROP_USER_CACHE_ON_LOGOUT = "cache-dropUserCacheOnLogout";
+  public static final String PROP_CACHE_STATS_REPORT_INTERVAL = "cache-statsReportInterval";
+  public static final String PROP_RELIABLE_MAX_CONCURRENT_REPLAYS = "reliable-maxConcurrentReplays";
+  public static final String PROP_RELIABLE_BATCH_ENDPOINT = "reliable-batchEndpoint";
+  public static final String PROP_RELIABLE_BATCH_MAX_SIZE = "reliable-batchMaxSize";
+
+  public static final long DEFAULT_CACHE_MAX_SIZE = 20 * 1024 * 1024; //20M
+  public static final int DEFAULT_CACHE_MAX_ENTRIES = 1000;
+  public static final long DEFAULT_CACHE_STATS_REPORT_INTERVAL = 0; // Disabled
+  public static final int DEFAULT_RELIABLE_MAX_CONCURRENT_REPLAYS = 2;
+  public static final int DEFAULT_RELIABLE_BATCH_MAX_SIZE = 50;
 
   private Map<String, String> configMap;
 
@@ -64,6 +80,65 @@ public abstract class MaxAndroidConfig {
     return null;
   }
 
+  /**
+   * The max size in bytes of the response cache, least recently updated entries are evicted beyond it
+   */
+  public long getCacheMaxSize() {
+    return getLongConfig(PROP_CACHE_MAX_SIZE, DEFAULT_CACHE_MAX_SIZE);
+  }
+
+  /**
+   * The max number of entries of the response cache, least recently updated entries are evicted beyond it
+   */
+  public int getCacheMaxEntries() {
+    return (int) getLongConfig(PROP_CACHE_MAX_ENTRIES, DEFAULT_CACHE_MAX_ENTRIES);
+  }
+
+  /**
+   * Interval in seconds to report cache stats as events through the Logger, 0 (default) to disable
+   */
+  public long getCacheStatsReportInterval() {
+    return getLongConfig(PROP_CACHE_STATS_REPORT_INTERVAL, DEFAULT_CACHE_STATS_REPORT_INTERVAL);
+  }
+
+  /**
+   * The max number of reliable calls replayed at the same time
+   */
+  public int getReliableMaxConcurrentReplays() {
+    return (int) getLongConfig(PROP_RELIABLE_MAX_CONCURRENT_REPLAYS, DEFAULT_RELIABLE_MAX_CONCURRENT_REPLAYS);
+  }
+
+  /**
+   * Path (relative to the base URL) of the endpoint to replay queued reliable calls in batches, null if batching is disabled
+   */
+  public String getReliableBatchEndpoint() {
+    Map<String, String> configs = getAllConfigs();
+    return null != configs ? configs.get(PROP_RELIABLE_BATCH_ENDPOINT) : null;
+  }
+
+  /**
+   * The max number of reliable calls in a batch
+   */
+  public int getReliableBatchMaxSize() {
+    return (int) getLongConfig(PROP_RELIABLE_BATCH_MAX_SIZE, DEFAULT_RELIABLE_BATCH_MAX_SIZE);
+  }
+
+  /**
+   * Whether GET calls made without CacheOptions are cached according to Cache-Control/Expires of the server
+   */
+  public boolean isServerCachePolicyEnabled() {
+    Map<String, String> configs = getAllConfigs();
+    return null != configs && Boolean.parseBoolean(configs.get(PROP_CACHE_SERVER_POLICY));
+  }
+
+  /**
+   * Whether cached responses of the user are removed on logout instead of kept for the next login
+   */
+  public boolean isUserCacheDroppedOnLogout() {
+    Map<String, String> configs = getAllConfigs();
+    return null != configs && Boolean.parseBoolean(configs.get(PROP_CACHE_DROP_USER_CACHE_ON_LOGOUT));
+  }
+
   /**
    * All configuration properties in key-value pair
    */
@@ -81,6 +156,20 @@ public abstract class MaxAndroidConfig {
     return configMap;
   }
 
+  private long getLongConfig(String key, long defaultValue) {
+    Map<String, String> configs = getAllConfigs();
+    String value = null != configs ? configs.get(key) : null;
+    if(StringUtil.isNotEmpty(value)) {
+      try {
+        return Long.parseLong(value.trim());
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Invalid value " + value + " for config " + key);
+      }
+    }
+
+    return defaultValue;
+  }
+
   public static class Builder {
     private String clientId;
     private String clientSecret;
@@ -124,6 +213,70 @@ public abstract class MaxAndroidConfig {
       return this;
     }
 
+    /**
+     * The max size in bytes of the response cache (optional)
+     */
+    public Builder cacheMaxSize(long value) {
+      mConfigMap.put(PROP_CACHE_MAX_SIZE, String.valueOf(value));
+      return this;
+    }
+
+    /**
+     * The max number of entries of the response cache (optional)
+     */
+    public Builder cacheMaxEntries(int value) {
+      mConfigMap.put(PROP_CACHE_MAX_ENTRIES, String.valueOf(value));
+      return this;
+    }
+
+    /**
+     * Interval in seconds to report cache stats through the Logger, 0 (default) to disable (optional)
+     */
+    public Builder cacheStatsReportInterval(long value) {
+      mConfigMap.put(PROP_CACHE_STATS_REPORT_INTERVAL, String.valueOf(value));
+      return this;
+    }
+
+    /**
+     * The max number of reliable calls replayed at the same time (optional)
+     */
+    public Builder reliableMaxConcurrentReplays(int value) {
+      mConfigMap.put(PROP_RELIABLE_MAX_CONCURRENT_REPLAYS, String.valueOf(value));
+      return this;
+    }
+
+    /**
+     * Path of the endpoint to replay queued reliable calls in batches (optional)
+     */
+    public Builder reliableBatchEndpoint(String value) {
+      mConfigMap.put(PROP_RELIABLE_BATCH_ENDPOINT, value);
+      return this;
+    }
+
+    /**
+     * The max number of reliable calls in a batch (optional)
+     */
+    public Builder reliableBatchMaxSize(int value) {
+      mConfigMap.put(PROP_RELIABLE_BATCH_MAX_SIZE, String.valueOf(value));
+      return this;
+    }
+
+    /**
+     * Cache GET calls made without CacheOptions according to Cache-Control/Expires of the server (optional)
+     */
+    public Builder serverCachePolicy(boolean value) {
+      mConfigMap.put(PROP_CACHE_SERVER_POLICY, String.valueOf(value));
+      return this;
+    }
+
+    /**
+     * Remove cached responses of the user on logout (optional)
+     */
+    public Builder dropUserCacheOnLogout(boolean value) {
+      mConfigMap.put(PROP_CACHE_DROP_USER_CACHE_ON_LOGOUT, String.valueOf(value));
+      return this;
+    }
+
     /**
      * The GCM senderId to enable GCM (optional)
      */
@@ -87,6 +87,10 @@ public class Logger {
     }
   }
 
+  public static boolean isLoggingStarted() {
+    return null != loggerOptions;
+  }
+
   public static void stopLogging() {
     flush();
     if(loggerOptions.isRemoteLoggingEnabled()) {
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest;
+
+import com.squareup.okhttp.Request;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Rule to invalidate cached GET responses when a mutating call (POST/PUT/PATCH/DELETE) on a matching path succeeds.
+ * <pre>
+ *   new CacheInvalidationRule.Builder().pathPattern("user/profile$").methods("PUT")
+ *     .invalidateTags("users").invalidatePaths("user/users", "user/query").build();
+ * </pre>
+ */
+public class CacheInvalidationRule {
+  private static final String TAG = CacheInvalidationRule.class.getSimpleName();
+
+  private static final Set<String> MUTATING_METHODS = new HashSet<>(Arrays.asList("POST", "PUT", "PATCH", "DELETE"));
+
+  private Pattern pathPattern;
+  private Set<String> methods = Collections.emptySet();
+  private Set<String> tags = Collections.emptySet();
+  private Set<String> paths = Collections.emptySet();
+
+  /**
+   * private constructor, always use builder
+   */
+  private CacheInvalidationRule() {
+  }
+
+  public static boolean isMutating(Request request) {
+    return MUTATING_METHODS.contains(request.method());
+  }
+
+  /**
+   * Whether the (mutating) request triggers this rule
+   * @param request
+   * @return
+   */
+  public boolean matches(Request request) {
+    if(!isMutating(request)) {
+      return false;
+    }
+    if(!methods.isEmpty() && !methods.contains(request.method())) {
+      return false;
+    }
+
+    return pathPattern.matcher(request.httpUrl().encodedPath()).find();
+  }
+
+  public Pattern getPathPattern() {
+    return pathPattern;
+  }
+
+  public Set<String> getMethods() {
+    return methods;
+  }
+
+  /**
+   * Tags of cached responses to invalidate
+   */
+  public Set<String> getTags() {
+    return tags;
+  }
+
+  /**
+   * Paths of cached GET responses to invalidate
+   */
+  public Set<String> getPaths() {
+    return paths;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("CacheInvalidationRule{").append("pathPattern = ").append(pathPattern).append(", ")
+        .append("methods = ").append(methods).append(", ")
+        .append("tags = ").append(tags).append(", ")
+        .append("paths = ").append(paths).append("}").toString();
+  }
+
+  public static class Builder {
+    private final CacheInvalidationRule toBuild = new CacheInvalidationRule();
+
+    /**
+     * Regular expression matched against the path of the mutating call
+     */
+    public Builder pathPattern(String regex) {
+      toBuild.pathPattern = Pattern.compile(regex);
+      return this;
+    }
+
+    /**
+     * Methods triggering the rule, any mutating method if not set
+     */
+    public Builder methods(String... methods) {
+      toBuild.methods = new HashSet<>(Arrays.asList(methods));
+      return this;
+    }
+
+    public Builder invalidateTags(String... tags) {
+      toBuild.tags = new HashSet<>(Arrays.asList(tags));
+      return this;
+    }
+
+    /**
+     * Cached GET responses under any of the paths are invalidated, matched on whole path segments
+     */
+    public Builder invalidatePaths(String... paths) {
+      toBuild.paths = new HashSet<>(Arrays.asList(paths));
+      return this;
+    }
+
+    public CacheInvalidationRule build() {
+      if(null == toBuild.pathPattern) {
+        throw new IllegalArgumentException("pathPattern should not be null");
+      }
+      if(toBuild.tags.isEmpty() && toBuild.paths.isEmpty()) {
+        throw new IllegalArgumentException("tags or paths to invalidate should be set");
+      }
+
+      return toBuild;
+    }
+  }
+}
@@ -15,12 +15,23 @@
  */
 package com.magnet.max.android.rest;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 public class CacheOptions {
   private static final String TAG = CacheOptions.class.getSimpleName();
 
   // Caching control
   private int maxCacheAge;
   private boolean alwaysUseCacheIfOffline;
+  private int staleWhileRevalidate;
+  private boolean coalesceRequests = true;
+  private boolean useServerCachePolicy;
+  private Set<String> tags = Collections.emptySet();
+  private int negativeCacheAge;
+  private int staleIfError;
 
   // General
   private int responseTimeout;
@@ -41,6 +52,30 @@ public class CacheOptions {
     return alwaysUseCacheIfOffline;
   }
 
+  public int getStaleWhileRevalidate() {
+    return staleWhileRevalidate;
+  }
+
+  public boolean isCoalesceRequests() {
+    return coalesceRequests;
+  }
+
+  public boolean isUseServerCachePolicy() {
+    return useServerCachePolicy;
+  }
+
+  public Set<String> getTags() {
+    return tags;
+  }
+
+  public int getNegativeCacheAge() {
+    return negativeCacheAge;
+  }
+
+  public int getStaleIfError() {
+    return staleIfError;
+  }
+
   public int getResponseTimeout() {
     return responseTimeout;
   }
@@ -49,11 +84,24 @@ public class CacheOptions {
     return useMock;
   }
 
+  /**
+   * Builder initialized with a copy of these options
+   */
+  public Builder newBuilder() {
+    return new Builder(this);
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder("CacheOptions(");
     sb.append("maxCacheAge:").append(maxCacheAge).append(", ");
-    sb.append("alwaysUseCacheIfOffline:").append(alwaysUseCacheIfOffline);
+    sb.append("alwaysUseCacheIfOffline:").append(alwaysUseCacheIfOffline).append(", ");
+    sb.append("staleWhileRevalidate:").append(staleWhileRevalidate).append(", ");
+    sb.append("coalesceRequests:").append(coalesceRequests).append(", ");
+    sb.append("useServerCachePolicy:").append(useServerCachePolicy).append(", ");
+    sb.append("tags:").append(tags).append(", ");
+    sb.append("negativeCacheAge:").append(negativeCacheAge).append(", ");
+    sb.append("staleIfError:").append(staleIfError);
     sb.append(")");
 
     return sb.toString();
@@ -62,6 +110,22 @@ public class CacheOptions {
   public static class Builder {
     private final CacheOptions toBuild = new CacheOptions();
 
+    public Builder() {
+    }
+
+    private Builder(CacheOptions options) {
+      toBuild.maxCacheAge = options.maxCacheAge;
+      toBuild.alwaysUseCacheIfOffline = options.alwaysUseCacheIfOffline;
+      toBuild.staleWhileRevalidate = options.staleWhileRevalidate;
+      toBuild.coalesceRequests = options.coalesceRequests;
+      toBuild.useServerCachePolicy = options.useServerCachePolicy;
+      toBuild.tags = options.tags;
+      toBuild.negativeCacheAge = options.negativeCacheAge;
+      toBuild.staleIfError = options.staleIfError;
+      toBuild.responseTimeout = options.responseTimeout;
+      toBuild.useMock = options.useMock;
+    }
+
     public Builder maxCacheAge(int value) {
       toBuild.maxCacheAge = value;
       return this;
@@ -72,6 +136,69 @@ public class CacheOptions {
       return this;
     }
 
+    /**
+     * Return the expired cache immediately if it expired less than the given seconds ago,
+     * and refresh it in background. Only applies when maxCacheAge is set.
+     * @param seconds
+     * @return
+     */
+    public Builder staleWhileRevalidate(int seconds) {
+      toBuild.staleWhileRevalidate = seconds;
+      return this;
+    }
+
+    /**
+     * Whether identical GET/HEAD requests in flight share one network call, default is true.
+     * Calls without CacheOptions are never coalesced.
+     * @param value
+     * @return
+     */
+    public Builder coalesceRequests(Boolean value) {
+      toBuild.coalesceRequests = value;
+      return this;
+    }
+
+    /**
+     * Cache according to Cache-Control/Expires headers of the response when maxCacheAge isn't set
+     * @param value
+     * @return
+     */
+    public Builder useServerCachePolicy(Boolean value) {
+      toBuild.useServerCachePolicy = value;
+      return this;
+    }
+
+    /**
+     * Tags of the cached response, see {@link com.magnet.max.android.MaxCore#invalidateCache(String...)}
+     * @param tags
+     * @return
+     */
+    public Builder tags(String... tags) {
+      toBuild.tags = new HashSet<>(Arrays.asList(tags));
+      return this;
+    }
+
+    /**
+     * Cache 404/410 responses for the given seconds
+     * @param seconds
+     * @return
+     */
+    public Builder negativeCacheAge(int seconds) {
+      toBuild.negativeCacheAge = seconds;
+      return this;
+    }
+
+    /**
+     * Return the last successful cache if it expired less than the given seconds ago
+     * when the network call fails or the server responds 5xx
+     * @param seconds
+     * @return
+     */
+    public Builder staleIfError(int seconds) {
+      toBuild.staleIfError = seconds;
+      return this;
+    }
+
     public Builder useMock(Boolean value) {
       toBuild.useMock = value;
       return this;
@@ -15,9 +15,15 @@
  */
 package com.magnet.max.android.rest;
 
+import java.util.Collections;
+import java.util.Set;
+
 public class CallOptions {
   private final CacheOptions cacheOptions;
   private final ReliableCallOptions reliableCallOptions;
+  private Set<String> invalidatedTags = Collections.emptySet();
+  private String idempotencyKey;
+  private Long reliableRequestId;
 
   public CallOptions(CacheOptions cacheOptions) {
     this(cacheOptions, null);
@@ -44,9 +50,45 @@ public class CallOptions {
     return reliableCallOptions;
   }
 
+  /**
+   * Cache tags to invalidate when the call succeeds
+   */
+  public Set<String> getInvalidatedTags() {
+    return invalidatedTags;
+  }
+
+  public void setInvalidatedTags(Set<String> invalidatedTags) {
+    this.invalidatedTags = null != invalidatedTags ? invalidatedTags : Collections.<String>emptySet();
+  }
+
+  /**
+   * Sent in {@link RestConstants#IDEMPOTENCY_KEY_HEADER} on every attempt of a persisted reliable call
+   */
+  public String getIdempotencyKey() {
+    return idempotencyKey;
+  }
+
+  public void setIdempotencyKey(String idempotencyKey) {
+    this.idempotencyKey = idempotencyKey;
+  }
+
+  /**
+   * Id of the persisted reliable call, identical calls are persisted and replayed separately
+   */
+  public Long getReliableRequestId() {
+    return reliableRequestId;
+  }
+
+  public void setReliableRequestId(Long reliableRequestId) {
+    this.reliableRequestId = reliableRequestId;
+  }
+
   @Override
   public String toString() {
     return new StringBuilder("CallOptions{").append("cacheOptions = ").append(cacheOptions).append(",")
-        .append("reliableCallOptions = ").append(reliableCallOptions).append(" }").toString();
+        .append("reliableCallOptions = ").append(reliableCallOptions).append(",")
+        .append("invalidatedTags = ").append(invalidatedTags).append(",")
+        .append("idempotencyKey = ").append(idempotencyKey).append(",")
+        .append("reliableRequestId = ").append(reliableRequestId).append(" }").toString();
   }
 }
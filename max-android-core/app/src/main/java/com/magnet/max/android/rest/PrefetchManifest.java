@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest;
+
+import com.magnet.max.android.rest.qos.Condition;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import retrofit.MagnetCall;
+
+/**
+ * GET calls to warm the response cache in background once the app token is available,
+ * and again in the cache partition of each user who logs in.
+ * The calls aren't executed themselves, so they can be warmed more than once.
+ * <pre>
+ *   MaxCore.setPrefetchManifest(new PrefetchManifest.Builder().calls(configService.getMobileConfig(callback))
+ *     .cacheOptions(new CacheOptions.Builder().maxCacheAge(3600).build())
+ *     .conditions(new WifiCondition()).build());
+ * </pre>
+ */
+public class PrefetchManifest {
+  private static final String TAG = PrefetchManifest.class.getSimpleName();
+
+  private final List<MagnetCall<?>> calls = new ArrayList<>();
+  private CacheOptions cacheOptions;
+  private Set<Condition> conditions = Collections.emptySet();
+
+  /**
+   * private constructor, always use builder
+   */
+  private PrefetchManifest() {
+  }
+
+  /**
+   * Calls created from Retrofit service interfaces, so the cache key is the same as the one of the app's calls
+   */
+  public List<MagnetCall<?>> getCalls() {
+    return calls;
+  }
+
+  public CacheOptions getCacheOptions() {
+    return cacheOptions;
+  }
+
+  /**
+   * The warm up is skipped if any of the conditions isn't met
+   */
+  public Set<Condition> getConditions() {
+    return conditions;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder("PrefetchManifest(");
+    sb.append("calls:").append(calls.size()).append(", ");
+    sb.append("cacheOptions:").append(cacheOptions).append(", ");
+    sb.append("conditions:").append(conditions);
+    sb.append(")");
+
+    return sb.toString();
+  }
+
+  public static class Builder {
+    private final PrefetchManifest toBuild = new PrefetchManifest();
+
+    public Builder calls(MagnetCall<?>... calls) {
+      toBuild.calls.addAll(Arrays.asList(calls));
+      return this;
+    }
+
+    public Builder cacheOptions(CacheOptions value) {
+      toBuild.cacheOptions = value;
+      return this;
+    }
+
+    public Builder conditions(Condition... conditions) {
+      toBuild.conditions = new HashSet<>(Arrays.asList(conditions));
+      return this;
+    }
+
+    public PrefetchManifest build() {
+      if(toBuild.calls.isEmpty()) {
+        throw new IllegalArgumentException("calls should not be empty");
+      }
+      if(null == toBuild.cacheOptions) {
+        throw new IllegalArgumentException("cacheOptions should not be null");
+      }
+
+      return toBuild;
+    }
+  }
+}
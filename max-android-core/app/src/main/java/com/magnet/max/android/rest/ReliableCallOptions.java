@@ -28,12 +28,30 @@ public class ReliableCallOptions {
   private static final String TAG = ReliableCallOptions.class.getSimpleName();
   private static final int DEFAULT_EXPIRE_TIME = 30 * 24 * 3600; //One month
 
+  public static final int PRIORITY_LOW = -10;
+  public static final int PRIORITY_NORMAL = 0;
+  public static final int PRIORITY_HIGH = 10;
+
+  /**
+   * How a call is collapsed with the queued calls when it's saved
+   */
+  public enum CollapsePolicy {
+    /** Every call is queued */
+    NONE,
+    /** Identical calls (same method, url and body) are queued once */
+    DEDUPE,
+    /** A call replaces the queued calls with the same method and url */
+    LAST_WRITE_WINS
+  }
+
   public static final ReliableCallOptions DEFAULT = new Builder().expiresIn(DEFAULT_EXPIRE_TIME).build();
 
   // QoS controller
   private int expiresIn;
   @Expose
   private Set<Condition> conditions;
+  private int priority = PRIORITY_NORMAL;
+  private CollapsePolicy collapsePolicy = CollapsePolicy.NONE;
 
   private final long createAt;
 
@@ -54,6 +72,14 @@ public class ReliableCallOptions {
     return conditions;
   }
 
+  public int getPriority() {
+    return priority;
+  }
+
+  public CollapsePolicy getCollapsePolicy() {
+    return collapsePolicy;
+  }
+
   public Set<Condition> unsatisfiedConditions(boolean shortCircuit) {
     if(null == conditions || conditions.isEmpty()) {
       return Collections.EMPTY_SET;
@@ -89,7 +115,9 @@ public class ReliableCallOptions {
   public String toString() {
     StringBuilder sb = new StringBuilder("ReliableCallOptions(");
     sb.append("expiresIn:").append(expiresIn).append(", ");
-    sb.append("conditions:").append(MagnetUtils.setToString(conditions));
+    sb.append("conditions:").append(MagnetUtils.setToString(conditions)).append(", ");
+    sb.append("priority:").append(priority).append(", ");
+    sb.append("collapsePolicy:").append(collapsePolicy);
     sb.append(")");
 
     return sb.toString();
@@ -117,6 +145,28 @@ public class ReliableCallOptions {
       return this;
     }
 
+    /**
+     * Calls with higher priority are replayed first, default is {@link #PRIORITY_NORMAL}.
+     * Calls to the same endpoint are always replayed in the order they were made.
+     * @param value
+     * @return
+     */
+    public Builder priority(int value) {
+      toBuild.priority = value;
+      return this;
+    }
+
+    /**
+     * How the call is collapsed with the queued calls, default is {@link CollapsePolicy#NONE}.
+     * E.g. LAST_WRITE_WINS for a PUT of the user profile so only the latest update is replayed.
+     * @param value
+     * @return
+     */
+    public Builder collapsePolicy(CollapsePolicy value) {
+      toBuild.collapsePolicy = null != value ? value : CollapsePolicy.NONE;
+      return this;
+    }
+
     public Builder useMock(Boolean value) {
       toBuild.useMock = value;
       return this;
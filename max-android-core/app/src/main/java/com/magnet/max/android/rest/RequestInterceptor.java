@@ -19,11 +19,14 @@ import android.util.Log;
 import com.magnet.max.android.auth.AuthTokenProvider;
 import com.magnet.max.android.connectivity.ConnectivityManager;
 import com.magnet.max.android.rest.qos.internal.CacheManager;
+import com.magnet.max.android.rest.qos.internal.RequestCoalescer;
 import com.magnet.max.android.util.AuthUtil;
 import com.squareup.okhttp.Interceptor;
+import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 
 /**
  * Interceptor to handle caching and access token
@@ -34,20 +37,29 @@ public class RequestInterceptor implements Interceptor {
   private final AuthTokenProvider authTokenProvider;
   private final RequestManager requestManager;
   private final CacheManager cacheManager;
+  private final RequestCoalescer requestCoalescer;
+  private volatile CacheOptions defaultCacheOptions;
 
   public RequestInterceptor(AuthTokenProvider authTokenProvider, RequestManager requestManager) {
     this.authTokenProvider = authTokenProvider;
     this.requestManager = requestManager;
 
-    this.cacheManager = new CacheManager();
+    this.cacheManager = new CacheManager(authTokenProvider);
+    this.requestCoalescer = new RequestCoalescer();
   }
 
-  @Override public Response intercept(Chain chain) throws IOException {
+  @Override public Response intercept(final Chain chain) throws IOException {
     Request request = chain.request();
     Log.i(TAG, "---------Intercepting url : " + request.method() + " " + request.urlString());
+    requestManager.onCallStarted(request);
 
     CallOptions options = requestManager.popRequestOptions(request);
+    if(null == options && null != defaultCacheOptions && "GET".equals(request.method())) {
+      options = new CallOptions(defaultCacheOptions);
+    }
     boolean isCacheEnabled = null != options && null != options.getCacheOptions();
+    // Looked up once for the fresh, stale and conditional lookups and the 304 refresh
+    CacheManager.CacheLookup cacheLookup = null;
     if(isCacheEnabled) {
       if (options.getCacheOptions().isAlwaysUseCacheIfOffline()
           && ConnectivityManager.getInstance().getConnectivityStatus() == ConnectivityManager.TYPE_NOT_CONNECTED) {
@@ -58,12 +70,32 @@ public class RequestInterceptor implements Interceptor {
         } else {
           throw new IOException("It's offline and no cached response found");
         }
-      } else if (options.getCacheOptions().getMaxCacheAge() > 0) { // Return from cache if it's not expired
-        Response cachedResponse = cacheManager.getCachedResponse(request, options.getCacheOptions());
+      } else if (isCacheLookupEnabled(options.getCacheOptions())) { // Return from cache if it's not expired
+        cacheLookup = cacheManager.lookup(request, options.getCacheOptions());
+        Response cachedResponse = cacheManager.getCachedResponse(request, options.getCacheOptions(), cacheLookup);
         if(null != cachedResponse) {
           Log.d(TAG, "-------return from cache when maxCacheAge = " + options.getCacheOptions().getMaxCacheAge());
           return cachedResponse;
         }
+
+        Response staleResponse = cacheManager.getStaleResponse(request, options.getCacheOptions(), cacheLookup);
+        if(null != staleResponse) {
+          Log.d(TAG, "-------return stale cache and refresh in background when staleWhileRevalidate = "
+              + options.getCacheOptions().getStaleWhileRevalidate());
+          requestManager.refreshCacheInBackground(request, options.getCacheOptions());
+          return staleResponse;
+        }
+      }
+    }
+
+    // Revalidate expired cache with ETag/Last-Modified
+    Request networkRequest = request;
+    CacheManager.CacheLookup conditionalLookup = null;
+    if(null != cacheLookup) {
+      Request conditionalRequest = cacheManager.newConditionalRequest(request, options.getCacheOptions(), cacheLookup);
+      if(null != conditionalRequest) {
+        networkRequest = conditionalRequest;
+        conditionalLookup = cacheLookup;
       }
     }
 
@@ -88,30 +120,65 @@ public class RequestInterceptor implements Interceptor {
       }
     }
 
-    Response response = null;
-    long startTime = System.currentTimeMillis();
-    try {
-      // Modify request
-      if(null != token || useMock) {
-        Request.Builder newRequestBuilder = chain.request().newBuilder();
+    String idempotencyKey = null != options && options.isReliable() ? options.getIdempotencyKey() : null;
 
-        if(null != token) {
-          newRequestBuilder.header(AuthUtil.AUTHORIZATION_HEADER, AuthUtil.generateOAuthToken(token));
-        }
+    // Modify request
+    if(null != token || useMock || null != idempotencyKey) {
+      Request.Builder newRequestBuilder = networkRequest.newBuilder();
 
-        if(useMock) {
-          newRequestBuilder.url(request.urlString().replace(RestConstants.REST_BASE_PATH, RestConstants.REST_MOCK_BASE_PATH));
-        }
+      if(null != token) {
+        newRequestBuilder.header(AuthUtil.AUTHORIZATION_HEADER, AuthUtil.generateOAuthToken(token));
+      }
 
-        response = chain.proceed(newRequestBuilder.build());
-      } else {
-        response = chain.proceed(request);
+      if(null != idempotencyKey) {
+        newRequestBuilder.header(RestConstants.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+      }
+
+      if(useMock) {
+        newRequestBuilder.url(request.urlString().replace(RestConstants.REST_BASE_PATH, RestConstants.REST_MOCK_BASE_PATH));
       }
 
+      networkRequest = newRequestBuilder.build();
+    }
+
+    if(isCoalescingEnabled(request, options)) {
+      final Request finalRequest = request;
+      final Request finalNetworkRequest = networkRequest;
+      final CallOptions finalOptions = options;
+      final CacheManager.CacheLookup finalConditionalLookup = conditionalLookup;
+      String key = RequestCoalescer.getKey(request, networkRequest);
+      return requestCoalescer.execute(key, request, getCoalescingTimeout(), new RequestCoalescer.NetworkCall() {
+        @Override public Response proceed() throws IOException {
+          return proceedNetwork(chain, finalRequest, finalNetworkRequest, finalOptions, finalConditionalLookup);
+        }
+      });
+    }
+
+    return proceedNetwork(chain, request, networkRequest, options, conditionalLookup);
+  }
+
+  /**
+   * @param conditionalLookup the cache lookup the conditional request was made from, null if it's not conditional
+   */
+  private Response proceedNetwork(Chain chain, Request request, Request networkRequest, CallOptions options,
+      CacheManager.CacheLookup conditionalLookup) throws IOException {
+    boolean isCacheEnabled = null != options && null != options.getCacheOptions();
+    Response response = null;
+    long startTime = System.currentTimeMillis();
+    try {
+      response = chain.proceed(networkRequest);
+
       if(null != options && options.isReliable()) { // Reliable call
-        requestManager.removeReliableRequest(request);
+        if(response.code() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+          requestManager.onReliableCallFailed(options.getReliableRequestId(), "HTTP " + response.code());
+        } else {
+          requestManager.removeReliableRequest(options.getReliableRequestId());
+        }
       }
     } catch (IOException e) {
+      if(null != options && options.isReliable()) {
+        requestManager.onReliableCallFailed(options.getReliableRequestId(), e.getMessage());
+      }
       //if(null != options && options.isReliable()) { // Reliable call
       //  requestManager.saveReliableRequest(request, null, null, options.getReliableCallOptions(), e.getMessage());
       //  //TODO :
@@ -120,23 +187,108 @@ public class RequestInterceptor implements Interceptor {
       //  throw e;
       //}
       Log.e(TAG, "error when getting response", e);
+      if(isCacheEnabled) {
+        Response staleResponse = cacheManager.getStaleIfErrorResponse(request, options.getCacheOptions());
+        if(null != staleResponse) {
+          Log.d(TAG, "-------return stale cache on error when staleIfError = " + options.getCacheOptions().getStaleIfError());
+          return staleResponse;
+        }
+      }
       throw e;
     }
-
     Log.d(TAG, "---------Response for url : " + request.method() + " " + request.urlString()
         + " : code = " +response.code() + ", message = " + response.message()
         + " in " + (System.currentTimeMillis() - startTime) + " ms");
 
-    //Save/Update response in cache
+    if(null != conditionalLookup && response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      Response cachedResponse = cacheManager.refreshCachedResponse(request, response, options.getCacheOptions(),
+          conditionalLookup);
+      if(null != cachedResponse) {
+        Log.d(TAG, "-------return from cache when not modified");
+        if(null != response.body()) {
+          response.body().close();
+        }
+        return cachedResponse;
+      }
+
+      // The cache is gone since the conditional request was made, the caller can't handle the 304
+      Log.d(TAG, "-------cache is gone when not modified, retry without validators");
+      if(null != response.body()) {
+        response.body().close();
+      }
+      return proceedNetwork(chain, request, CacheManager.newUnconditionalRequest(networkRequest), options, null);
+    }
+
+    if(isCacheEnabled && response.code() >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+      Response staleResponse = cacheManager.getStaleIfErrorResponse(request, options.getCacheOptions());
+      if(null != staleResponse) {
+        Log.d(TAG, "-------return stale cache on server error when staleIfError = " + options.getCacheOptions().getStaleIfError());
+        if(null != response.body()) {
+          response.body().close();
+        }
+        return staleResponse;
+      }
+    }
+
+    //Invalidate caches changed by the call
     if(response.isSuccessful()
-        && isCacheEnabled
-        && (options.getCacheOptions().getMaxCacheAge() > 0 || options.getCacheOptions().isAlwaysUseCacheIfOffline())) {
+        && (CacheInvalidationRule.isMutating(request) || (null != options && !options.getInvalidatedTags().isEmpty()))) {
+      cacheManager.invalidate(request, null != options ? options.getInvalidatedTags() : null);
+    }
+
+    //Save/Update response in cache
+    if(isCacheEnabled
+        && isCacheStoreEnabled(options.getCacheOptions())
+        && cacheManager.isCacheable(response, options.getCacheOptions())) {
       return cacheManager.cacheResponse(request, response, options.getCacheOptions());
     }
 
     return response;
   }
 
+  private static boolean isCacheLookupEnabled(CacheOptions cacheOptions) {
+    return cacheOptions.getMaxCacheAge() > 0 || cacheOptions.isUseServerCachePolicy() || cacheOptions.getNegativeCacheAge() > 0;
+  }
+
+  private static boolean isCacheStoreEnabled(CacheOptions cacheOptions) {
+    return isCacheLookupEnabled(cacheOptions) || cacheOptions.isAlwaysUseCacheIfOffline() || cacheOptions.getStaleIfError() > 0;
+  }
+
+  /**
+   * Identical GET/HEAD requests with CacheOptions share one network call while in flight unless it's disabled in CacheOptions
+   */
+  private boolean isCoalescingEnabled(Request request, CallOptions options) {
+    if(!"GET".equals(request.method()) && !"HEAD".equals(request.method())) {
+      return false;
+    }
+
+    return null != options && !options.isReliable() && null != options.getCacheOptions()
+        && options.getCacheOptions().isCoalesceRequests();
+  }
+
+  /**
+   * Callers joining an in-flight call wait at most as long as the call itself could take, no limit without read timeout
+   */
+  private long getCoalescingTimeout() {
+    OkHttpClient client = requestManager.getClient();
+    if(client.getReadTimeout() <= 0) {
+      return 0;
+    }
+
+    return client.getConnectTimeout() + client.getWriteTimeout() + client.getReadTimeout();
+  }
+
+  /**
+   * Cache options applied to GET calls made without options, e.g. to follow the server cache policy
+   */
+  public void setDefaultCacheOptions(CacheOptions defaultCacheOptions) {
+    this.defaultCacheOptions = defaultCacheOptions;
+  }
+
+  public CacheManager getCacheManager() {
+    return cacheManager;
+  }
+
   private String getToken() {
     String authToken = null;
     if(null != authTokenProvider.getUserToken()) {
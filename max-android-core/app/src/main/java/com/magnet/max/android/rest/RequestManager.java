@@ -17,33 +17,66 @@
 package com.magnet.max.android.rest;
 
 import android.util.Log;
+import com.magnet.max.android.config.MaxAndroidConfig;
 import com.magnet.max.android.connectivity.ConnectivityListener;
 import com.magnet.max.android.connectivity.ConnectivityManager;
+import com.magnet.max.android.rest.qos.Condition;
 import com.magnet.max.android.rest.qos.internal.CacheUtils;
+import com.magnet.max.android.rest.qos.internal.ReliableBatch;
+import com.magnet.max.android.rest.qos.internal.ReliableCallScheduler;
 import com.magnet.max.android.rest.qos.internal.ReliableManager;
+import com.magnet.max.android.rest.qos.internal.ReliableReplayEngine;
 import com.magnet.max.android.rest.qos.internal.ReliableRequestEntity;
+import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.OkHttpClient;
 import com.squareup.okhttp.Request;
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import okio.Buffer;
+import okio.BufferedSource;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import retrofit.Response;
 
 public class RequestManager implements ConnectivityListener {
   private static final String TAG = RequestManager.class.getSimpleName();
   private static final String COMMON_RETROFIT_CALLBACK_TAG = "CommonRetrofitCallback";
   private static final String COMMON_OKHTTP_CALLBACK_TAG = "CommonOkHttpCallback";
+  private static final long REFRESH_READ_SIZE = 8 * 1024;
 
-  private final ConcurrentHashMap<String, CallOptions> callOptionsMap = new ConcurrentHashMap<>();
+  // Keyed by the Request instance (Request doesn't override equals), so identical requests with different options
+  // don't collide and entries of calls that never reach the interceptor go away with their Request
+  private final Map<Request, CallOptions> callOptionsMap = Collections.synchronizedMap(new WeakHashMap<Request, CallOptions>());
+  // Replay keys of requests sent by the replay engine
+  private final Map<Request, String> sentReplays = Collections.synchronizedMap(new WeakHashMap<Request, String>());
   private final Deque<RequestInfo> pendingCallsWaitingForToken = new ArrayDeque();
-  private final ConcurrentHashMap<String, RequestInfo> pendingCallsWaitingForPrerequisite = new ConcurrentHashMap<>();
+  // Keyed by the id of the persisted call, identical calls saved separately are sent separately
+  private final ConcurrentHashMap<Long, RequestInfo> pendingCallsWaitingForPrerequisite = new ConcurrentHashMap<>();
+  private final Set<String> refreshingRequests = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
   private final OkHttpClient client;
   private final ReliableManager reliableManager;
+  private final ReliableReplayEngine replayEngine;
+  // Ids of reliable calls in a batch in flight
+  private final Set<Long> batchingRequests = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+  private volatile HttpUrl batchEndpoint;
+  private volatile int batchMaxSize = MaxAndroidConfig.DEFAULT_RELIABLE_BATCH_MAX_SIZE;
+
+  private ExecutorService prefetchExecutor;
 
   private final retrofit.Callback commonRetrofitCallback;
   private final com.squareup.okhttp.Callback commonOkHttpCallback;
@@ -57,6 +90,7 @@ public class RequestManager implements ConnectivityListener {
     //this.applicationContext = applicationContext;
 
     this.reliableManager = new ReliableManager();
+    this.replayEngine = new ReliableReplayEngine(client.getDispatcher());
 
     //ConnectivityManager.getInstance().registerListener(this);
 
@@ -82,30 +116,96 @@ public class RequestManager implements ConnectivityListener {
   }
 
   public void saveRequestOptions(Request request, CallOptions options) {
-    callOptionsMap.put(CacheUtils.getRequestHash(request), options);
+    callOptionsMap.put(request, options);
   }
 
   public void saveReliableRequest(Request request, retrofit.Call call, retrofit.Callback callback,
       ReliableCallOptions reliableCallOptions, String reason) {
-    pendingCallsWaitingForPrerequisite.put(CacheUtils.getRequestHash(request),
-        new RequestInfo(request, call, callback, new CallOptions(reliableCallOptions)));
-
     //Persist it
-    reliableManager.saveRequest(request, reliableCallOptions, reason);
+    List<ReliableRequestEntity> superseded = new ArrayList<>();
+    ReliableRequestEntity operation = reliableManager.saveRequest(request, reliableCallOptions, reason, superseded);
+    CallOptions callOptions = new CallOptions(reliableCallOptions);
+    callOptions.setIdempotencyKey(operation.getIdempotencyKey());
+    callOptions.setReliableRequestId(operation.getId());
+
+    retrofit.Callback callbacks = callback;
+    for(ReliableRequestEntity e : superseded) {
+      replayEngine.cancel(getReplayKey(e.getId()));
+      RequestInfo replaced = pendingCallsWaitingForPrerequisite.remove(e.getId());
+      if(null != replaced && null != replaced.getCallback()) {
+        if(operation.getRequestHash().equals(e.getRequestHash())) {
+          // Identical call replaced by LAST_WRITE_WINS, both callers get the result
+          callbacks = CallbackGroup.of(replaced.getCallback(), callbacks);
+        } else {
+          replaced.getCallback().onFailure(new IOException("Replaced by a later call to " + request.method() + " " + request.urlString()));
+        }
+      }
+    }
+
+    RequestInfo requestInfo = new RequestInfo(request, call, callbacks, callOptions);
+    RequestInfo existing = pendingCallsWaitingForPrerequisite.putIfAbsent(operation.getId(), requestInfo);
+    while(null != existing) {
+      // Deduplicated into a waiting call, both callers get the result
+      RequestInfo merged = new RequestInfo(request, call, CallbackGroup.of(existing.getCallback(), callbacks), callOptions);
+      if(pendingCallsWaitingForPrerequisite.replace(operation.getId(), existing, merged)) {
+        break;
+      }
+      existing = pendingCallsWaitingForPrerequisite.putIfAbsent(operation.getId(), requestInfo);
+    }
   }
 
-  public void removeReliableRequest(Request request) {
-    pendingCallsWaitingForPrerequisite.remove(CacheUtils.getRequestHash(request));
+  /**
+   * @param requestId id of the persisted reliable call
+   */
+  public void removeReliableRequest(Long requestId) {
+    if(null == requestId) {
+      Log.w(TAG, "Reliable call isn't persisted, nothing to remove");
+      return;
+    }
+    pendingCallsWaitingForPrerequisite.remove(requestId);
+    replayEngine.onComplete(getReplayKey(requestId));
     //Remove from DB
-    reliableManager.removeRequest(request);
+    reliableManager.removeRequest(requestId);
+  }
+
+  /**
+   * Back off the next attempt of the reliable call and schedule the replay
+   * @param requestId id of the persisted reliable call
+   * @param reason
+   */
+  public void onReliableCallFailed(Long requestId, String reason) {
+    if(null == requestId) {
+      Log.w(TAG, "Reliable call isn't persisted, not backing off");
+      return;
+    }
+    replayEngine.onComplete(getReplayKey(requestId));
+    Long nextAttemptAt = reliableManager.recordFailedAttempt(requestId, reason);
+    if(null != nextAttemptAt) {
+      scheduleReliableCalls(nextAttemptAt);
+    }
+  }
+
+  public OkHttpClient getClient() {
+    return client;
   }
 
   public CallOptions getRequestOptions(Request request) {
-    return callOptionsMap.get(CacheUtils.getRequestHash(request));
+    return callOptionsMap.get(request);
+  }
+
+  /**
+   * The Dispatcher started executing the request, so the replay engine knows which of its replays are still queued
+   * @param request
+   */
+  public void onCallStarted(Request request) {
+    String replayKey = sentReplays.remove(request);
+    if(null != replayKey) {
+      replayEngine.onStarted(replayKey);
+    }
   }
 
   public CallOptions popRequestOptions(Request request) {
-    return callOptionsMap.remove(CacheUtils.getRequestHash(request));
+    return callOptionsMap.remove(request);
   }
 
   public void savePendingCall(retrofit.Call call, retrofit.Callback callback,
@@ -123,26 +223,323 @@ public class RequestManager implements ConnectivityListener {
     }
   }
 
+  /**
+   * Max number of reliable calls replayed at the same time
+   * @param maxInFlight
+   */
+  public void setMaxConcurrentReplays(int maxInFlight) {
+    replayEngine.setMaxInFlight(maxInFlight);
+  }
+
+  /**
+   * Queue the persisted reliable calls which aren't backing off for replay, the others are scheduled
+   * when the earliest one becomes eligible. Calls to an endpoint wait while an older call to it is backing off.
+   */
   public synchronized void resendReliableCalls() {
-    Set<Request> expiredRequests = new HashSet<>();
+    Set<Long> expiredRequests = new HashSet<>();
+    Set<String> blockedEndpoints = new HashSet<>();
+    List<ReliableRequestEntity> replays = new ArrayList<>();
+    List<Request> replayRequests = new ArrayList<>();
+    long currentTimestamp = System.currentTimeMillis();
     for(ReliableRequestEntity e : reliableManager.getAllCachedRequestEntities()) {
-      ReliableCallOptions options = e.getOptions();
       Request request = e.getRequest().toRequest();
+      String endpoint = ReliableReplayEngine.getEndpoint(request);
+      if(!ReliableCallScheduler.isDue(e, currentTimestamp)) {
+        blockedEndpoints.add(endpoint);
+        continue;
+      }
+      Long requestId = e.getId();
+      if(blockedEndpoints.contains(endpoint) || pendingCallsWaitingForPrerequisite.containsKey(requestId)
+          || replayEngine.contains(getReplayKey(requestId)) || batchingRequests.contains(requestId)) {
+        continue;
+      }
+
+      ReliableCallOptions options = e.getOptions();
       if(!options.isExpired()) {
         if(options.evaluateConditions(true)) {
-          Log.d(TAG, "-----Resending reliable call " + request);
-          client.newCall(request).enqueue(commonOkHttpCallback);
+          replays.add(e);
+          replayRequests.add(request);
         }
       } else {
         Log.d(TAG, "-----Reliable request " + request + " expired");
-        expiredRequests.add(request);
+        expiredRequests.add(requestId);
+      }
+    }
+
+    // Calls to an endpoint are batched only if all of them can be, so they stay in order
+    HttpUrl batchEndpoint = this.batchEndpoint;
+    Set<String> unbatchableEndpoints = new HashSet<>();
+    if(null != batchEndpoint) {
+      for(int i = 0; i < replays.size(); i++) {
+        if(!isBatchable(replays.get(i), replayRequests.get(i), batchEndpoint)) {
+          unbatchableEndpoints.add(ReliableReplayEngine.getEndpoint(replayRequests.get(i)));
+        }
+      }
+    }
+    List<ReliableRequestEntity> batchables = new ArrayList<>();
+    List<Request> batchableRequests = new ArrayList<>();
+    for(int i = 0; i < replays.size(); i++) {
+      Request request = replayRequests.get(i);
+      if(null != batchEndpoint && !unbatchableEndpoints.contains(ReliableReplayEngine.getEndpoint(request))) {
+        batchables.add(replays.get(i));
+        batchableRequests.add(request);
+      } else {
+        submitReplay(replays.get(i), request);
+      }
+    }
+    if(batchables.size() == 1) {
+      submitReplay(batchables.get(0), batchableRequests.get(0));
+    } else {
+      for(int i = 0; i < batchables.size(); i += batchMaxSize) {
+        int end = Math.min(batchables.size(), i + batchMaxSize);
+        submitBatch(batchables.subList(i, end), batchableRequests.subList(i, end), batchEndpoint);
       }
     }
 
     //Clean up expired requests
-    for(Request r : expiredRequests) {
-      removeReliableRequest(r);
+    for(Long requestId : expiredRequests) {
+      removeReliableRequest(requestId);
+    }
+
+    Long nextAttemptAt = reliableManager.getNextAttemptAt();
+    if(null != nextAttemptAt) {
+      scheduleReliableCalls(nextAttemptAt);
+    }
+  }
+
+  /**
+   * Replay queued reliable calls in batches of at most maxSize calls POSTed to the endpoint, null to disable
+   * @param endpoint
+   * @param maxSize
+   */
+  public void setBatchEndpoint(HttpUrl endpoint, int maxSize) {
+    if(maxSize < 2) {
+      throw new IllegalArgumentException("Batch size should be at least 2");
+    }
+    this.batchMaxSize = maxSize;
+    this.batchEndpoint = endpoint;
+  }
+
+  private void submitReplay(final ReliableRequestEntity e, final Request request) {
+    final String replayKey = getReplayKey(e.getId());
+    final ReliableCallOptions options = e.getOptions();
+    replayEngine.submit(new ReliableReplayEngine.Task(replayKey, ReliableReplayEngine.getEndpoint(request),
+        options.getPriority(), null != e.getCreatedAt() ? e.getCreatedAt() : 0) {
+      @Override protected void send() {
+        Log.d(TAG, "-----Resending reliable call " + request);
+        CallOptions callOptions = new CallOptions(options);
+        callOptions.setIdempotencyKey(e.getIdempotencyKey());
+        callOptions.setReliableRequestId(e.getId());
+        saveRequestOptions(request, callOptions);
+        sentReplays.put(request, replayKey);
+        client.newCall(request).enqueue(new ReplayOkHttpCallback(replayKey));
+      }
+    });
+  }
+
+  private void submitBatch(List<ReliableRequestEntity> entities, List<Request> requests, HttpUrl batchEndpoint) {
+    final ReliableBatch batch = new ReliableBatch(batchEndpoint);
+    // Requests by idempotency key
+    final Map<String, ReliableRequestEntity> batched = new LinkedHashMap<>();
+    int priority = Integer.MIN_VALUE;
+    long createdAt = Long.MAX_VALUE;
+    for(int i = 0; i < entities.size(); i++) {
+      ReliableRequestEntity e = entities.get(i);
+      try {
+        batch.add(e.getIdempotencyKey(), requests.get(i));
+      } catch (IOException ex) {
+        Log.e(TAG, "Failed to add " + e.getUrl() + " to batch", ex);
+        continue;
+      }
+      batched.put(e.getIdempotencyKey(), e);
+      priority = Math.max(priority, e.getOptions().getPriority());
+      if(null != e.getCreatedAt()) {
+        createdAt = Math.min(createdAt, e.getCreatedAt());
+      }
+    }
+    if(batched.isEmpty()) {
+      return;
+    }
+
+    final Set<Long> requestIds = new HashSet<>();
+    for(ReliableRequestEntity e : batched.values()) {
+      requestIds.add(e.getId());
+    }
+    batchingRequests.addAll(requestIds);
+    final String batchHash = "batch:" + batched.keySet().iterator().next();
+    replayEngine.submit(new ReliableReplayEngine.Task(batchHash, batchEndpoint.host() + batchEndpoint.encodedPath(),
+        priority, createdAt) {
+      @Override protected void send() {
+        Log.d(TAG, "-----Resending " + batch.size() + " reliable calls in batch");
+        Request batchRequest = batch.toRequest();
+        sentReplays.put(batchRequest, batchHash);
+        client.newCall(batchRequest).enqueue(new com.squareup.okhttp.Callback() {
+          @Override public void onFailure(Request request, IOException e) {
+            onBatchCompleted(batchHash, batched, requestIds, null, e.getMessage());
+          }
+
+          @Override public void onResponse(com.squareup.okhttp.Response response) throws IOException {
+            int code = response.code();
+            if(code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_BAD_METHOD
+                || code == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+              response.body().close();
+              Log.w(TAG, "Batch endpoint " + response.request().urlString() + " isn't supported, replaying calls one by one");
+              RequestManager.this.batchEndpoint = null;
+              batchingRequests.removeAll(requestIds);
+              replayEngine.onComplete(batchHash);
+              scheduleReliableCalls(System.currentTimeMillis());
+              return;
+            }
+
+            Map<String, Integer> statuses = null;
+            String reason = "HTTP " + code;
+            if(response.isSuccessful()) {
+              try {
+                statuses = ReliableBatch.parseResults(response);
+              } catch (IOException e) {
+                reason = e.getMessage();
+              }
+            } else {
+              response.body().close();
+            }
+            onBatchCompleted(batchHash, batched, requestIds, statuses, reason);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Remove the calls which got a response, back off the others including the ones missing in the batch response
+   */
+  private void onBatchCompleted(String batchHash, Map<String, ReliableRequestEntity> batched, Set<Long> requestIds,
+      Map<String, Integer> statuses, String reason) {
+    Long nextAttemptAt = null;
+    try {
+      for(Map.Entry<String, ReliableRequestEntity> entry : batched.entrySet()) {
+        Integer status = null != statuses ? statuses.get(entry.getKey()) : null;
+        if(null != status && status < HttpURLConnection.HTTP_INTERNAL_ERROR) {
+          pendingCallsWaitingForPrerequisite.remove(entry.getValue().getId());
+          reliableManager.removeRequest(entry.getValue().getId());
+        } else {
+          String failureReason = null != status ? "HTTP " + status
+              : (null != statuses ? "No valid status in batch response" : reason);
+          Long time = reliableManager.recordFailedAttempt(entry.getValue().getId(), failureReason);
+          if(null != time && (null == nextAttemptAt || time < nextAttemptAt)) {
+            nextAttemptAt = time;
+          }
+        }
+      }
+    } finally {
+      batchingRequests.removeAll(requestIds);
+      replayEngine.onComplete(batchHash);
+    }
+
+    if(null != nextAttemptAt) {
+      scheduleReliableCalls(nextAttemptAt);
+    }
+  }
+
+  private static boolean isBatchable(ReliableRequestEntity e, Request request, HttpUrl batchEndpoint) {
+    return null != e.getIdempotencyKey() && !e.getOptions().useMock()
+        && request.httpUrl().host().equals(batchEndpoint.host()) && ReliableBatch.isBatchable(request);
+  }
+
+  private void scheduleReliableCalls(long time) {
+    reliableManager.getScheduler().scheduleReplay(time, new Runnable() {
+      @Override public void run() {
+        try {
+          resendReliableCalls();
+        } catch (Exception e) {
+          Log.e(TAG, "Failed to resend reliable calls", e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Refresh the cache of the request in background, at most one refresh per request at a time
+   * @param request
+   * @param cacheOptions
+   */
+  public void refreshCacheInBackground(Request request, CacheOptions cacheOptions) {
+    final String requestHash = CacheUtils.getRequestHash(request);
+    if(!refreshingRequests.add(requestHash)) {
+      Log.d(TAG, "-----Cache refresh is already in progress for " + request.urlString());
+      return;
+    }
+
+    // Same cache options without staleWhileRevalidate so the refresh goes to network,
+    // on its own request so the options of the caller's request are left alone
+    Request refreshRequest = CacheUtils.copyOf(request);
+    saveRequestOptions(refreshRequest, new CallOptions(cacheOptions.newBuilder().staleWhileRevalidate(0).build()));
+    client.newCall(refreshRequest).enqueue(new com.squareup.okhttp.Callback() {
+      @Override public void onFailure(Request request, IOException e) {
+        refreshingRequests.remove(requestHash);
+        Log.d(TAG, "-----Failed to refresh cache : " + e + " for request : \n" + request);
+      }
+
+      @Override public void onResponse(com.squareup.okhttp.Response response) throws IOException {
+        try {
+          readFully(response);
+          Log.d(TAG, "-----Cache refreshed with response code " + response.code() + " for request : " + response.request().urlString());
+        } finally {
+          refreshingRequests.remove(requestHash);
+        }
+      }
+    });
+  }
+
+  /**
+   * Execute the call in background at low priority to fill the cache, the response is discarded
+   * @param call
+   * @param request the request of the call
+   * @param cacheOptions
+   * @param conditions
+   */
+  public void prefetch(final retrofit.Call call, final Request request, final CacheOptions cacheOptions,
+      Set<Condition> conditions) {
+    submitPrefetch(request, conditions, new Callable<Integer>() {
+      @Override public Integer call() throws Exception {
+        saveRequestOptions(request, new CallOptions(cacheOptions));
+        // The converter reads and closes the body, so the cache gets written
+        return call.execute().code();
+      }
+    });
+  }
+
+  private synchronized void submitPrefetch(final Request request, final Set<Condition> conditions,
+      final Callable<Integer> networkCall) {
+    if(null == prefetchExecutor) {
+      prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "CachePrefetch");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
     }
+
+    prefetchExecutor.execute(new Runnable() {
+      @Override public void run() {
+        if(null != conditions) {
+          for(Condition condition : conditions) {
+            if(!condition.isMet()) {
+              Log.d(TAG, "-----Skip prefetching " + request.urlString() + " because condition " + condition + " isn't met");
+              return;
+            }
+          }
+        }
+
+        try {
+          int code = networkCall.call();
+          Log.d(TAG, "-----Prefetched with response code " + code + " for request : " + request.urlString());
+        } catch (Exception e) {
+          Log.d(TAG, "-----Failed to prefetch : " + e + " for request : " + request.urlString());
+        }
+      }
+    });
   }
 
   public void clearPendingCalls() {
@@ -153,21 +550,51 @@ public class RequestManager implements ConnectivityListener {
     if(ConnectivityManager.TYPE_WIFI == newStatus) {
       if(pendingCallsWaitingForPrerequisite.size() > 0) {
         Log.d(TAG, "-------sending reliable call when WIFI is back ");
-        Iterator<RequestInfo> it = pendingCallsWaitingForPrerequisite.values().iterator();
+        Iterator<Map.Entry<Long, RequestInfo>> it = pendingCallsWaitingForPrerequisite.entrySet().iterator();
         while (it.hasNext()) {
-          RequestInfo ri = it.next();
-          if (ri.getOptions().getReliableCallOptions().evaluateConditions(true)) {
-            if (null != ri.getCall()) {
-              ri.getCall()
-                  .enqueue(null != ri.getCallback() ? ri.getCallback() : commonRetrofitCallback);
-            } else {
-              client.newCall(ri.getRequest()).enqueue(commonOkHttpCallback);
-            }
-
-            //pendingCallsWaitingForPrerequisite.pop();
+          Map.Entry<Long, RequestInfo> entry = it.next();
+          final RequestInfo ri = entry.getValue();
+          final String replayKey = getReplayKey(entry.getKey());
+          ReliableCallOptions options = ri.getOptions().getReliableCallOptions();
+          if (options.evaluateConditions(true)) {
+            // The call can only be sent once, later attempts are replayed from DB with backoff
+            it.remove();
+            replayEngine.submit(new ReliableReplayEngine.Task(replayKey, ReliableReplayEngine.getEndpoint(ri.getRequest()),
+                options.getPriority(), ri.getCreatedAt()) {
+              @Override protected void send() {
+                saveRequestOptions(ri.getRequest(), ri.getOptions());
+                sentReplays.put(ri.getRequest(), replayKey);
+                if (null != ri.getCall()) {
+                  ri.getCall().enqueue(new ReplayCallback(replayKey,
+                      null != ri.getCallback() ? ri.getCallback() : commonRetrofitCallback));
+                } else {
+                  client.newCall(ri.getRequest()).enqueue(new ReplayOkHttpCallback(replayKey));
+                }
+              }
+            });
           }
         }
       }
+
+      // Persisted calls are queued in background
+      scheduleReliableCalls(System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Read the body to the end, the cache is written when the body is fully read
+   */
+  private static void readFully(com.squareup.okhttp.Response response) throws IOException {
+    if(null != response.body()) {
+      BufferedSource source = response.body().source();
+      Buffer buffer = new Buffer();
+      try {
+        while (source.read(buffer, REFRESH_READ_SIZE) != -1) {
+          buffer.clear();
+        }
+      } finally {
+        response.body().close();
+      }
     }
   }
 
@@ -177,11 +604,109 @@ public class RequestManager implements ConnectivityListener {
         + pendingCallsWaitingForToken);
   }
 
+  /**
+   * Key of the persisted reliable call in the replay engine
+   */
+  private static String getReplayKey(Long requestId) {
+    return String.valueOf(requestId);
+  }
+
+  /**
+   * Releases the replay slot of the call before passing the result on
+   */
+  private class ReplayCallback implements retrofit.Callback {
+    private final String replayKey;
+    private final retrofit.Callback callback;
+
+    public ReplayCallback(String replayKey, retrofit.Callback callback) {
+      this.replayKey = replayKey;
+      this.callback = callback;
+    }
+
+    @Override public void onResponse(Response response) {
+      replayEngine.onComplete(replayKey);
+      callback.onResponse(response);
+    }
+
+    @Override public void onFailure(Throwable throwable) {
+      replayEngine.onComplete(replayKey);
+      callback.onFailure(throwable);
+    }
+  }
+
+  /**
+   * Releases the replay slot of the call sent without a Retrofit call
+   */
+  private class ReplayOkHttpCallback implements com.squareup.okhttp.Callback {
+    private final String replayKey;
+
+    public ReplayOkHttpCallback(String replayKey) {
+      this.replayKey = replayKey;
+    }
+
+    @Override public void onFailure(Request request, IOException e) {
+      replayEngine.onComplete(replayKey);
+      commonOkHttpCallback.onFailure(request, e);
+    }
+
+    @Override public void onResponse(com.squareup.okhttp.Response response) throws IOException {
+      replayEngine.onComplete(replayKey);
+      try {
+        commonOkHttpCallback.onResponse(response);
+      } finally {
+        if(null != response.body()) {
+          response.body().close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Passes the result of a call on to the callbacks of all identical calls collapsed into it
+   */
+  private static class CallbackGroup implements retrofit.Callback {
+    private final List<retrofit.Callback> callbacks = new ArrayList<>();
+
+    public static retrofit.Callback of(retrofit.Callback first, retrofit.Callback second) {
+      if(null == first) {
+        return second;
+      } else if(null == second) {
+        return first;
+      }
+
+      CallbackGroup group = new CallbackGroup();
+      group.add(first);
+      group.add(second);
+      return group;
+    }
+
+    private void add(retrofit.Callback callback) {
+      if(callback instanceof CallbackGroup) {
+        callbacks.addAll(((CallbackGroup) callback).callbacks);
+      } else {
+        callbacks.add(callback);
+      }
+    }
+
+    @Override public void onResponse(Response response) {
+      for(retrofit.Callback callback : callbacks) {
+        callback.onResponse(response);
+      }
+    }
+
+    @Override public void onFailure(Throwable throwable) {
+      for(retrofit.Callback callback : callbacks) {
+        callback.onFailure(throwable);
+      }
+    }
+  }
+
   private static class RequestInfo {
     private final Request request;
     private final retrofit.Call call;
     private final CallOptions options;
     private final retrofit.Callback callback;
+    private final long createdAt = System.currentTimeMillis();
 
     public RequestInfo(Request request, retrofit.Call call, retrofit.Callback callback, CallOptions options) {
       this.request = request;
@@ -210,6 +735,10 @@ public class RequestManager implements ConnectivityListener {
       return options;
     }
 
+    public long getCreatedAt() {
+      return createdAt;
+    }
+
     @Override
     public String toString() {
       return new StringBuilder("RequestInfo {")
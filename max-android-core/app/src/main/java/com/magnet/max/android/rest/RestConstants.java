@@ -13,4 +13,6 @@ public interface RestConstants {
 
   String REST_BASE_PATH = "/api/";
   String REST_MOCK_BASE_PATH = "/mock/api/";
+
+  String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
 }
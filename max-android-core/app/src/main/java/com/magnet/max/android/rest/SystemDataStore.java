@@ -16,17 +16,44 @@
 package com.magnet.max.android.rest;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
 import android.util.Log;
 import com.activeandroid.ActiveAndroid;
+import com.activeandroid.Cache;
 import com.activeandroid.Configuration;
+import com.activeandroid.TableInfo;
+import com.activeandroid.annotation.Column;
+import com.activeandroid.util.SQLiteUtils;
+import com.magnet.max.android.rest.qos.internal.CacheTagEntity;
 import com.magnet.max.android.rest.qos.internal.CachedRequestSerializer;
 import com.magnet.max.android.rest.qos.internal.CachedResponseSerializer;
 import com.magnet.max.android.rest.qos.internal.ReliableRequestEntity;
 import com.magnet.max.android.rest.qos.internal.ResponseCacheEntity;
+import com.magnet.max.android.rest.qos.internal.ResponseCacheIndex;
+import com.magnet.max.android.util.StringUtil;
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class SystemDataStore {
   private static final String TAG = SystemDataStore.class.getSimpleName();
   private static final String DB_NAME = "magnet_android.db";
+  private static final String PREFS_NAME = "magnet_system_data_store";
+  private static final String PREF_CACHE_KEY_VERSION = "cacheKeyVersion";
+  /**
+   * Bumped when the hash of cache keys changes, cached responses stored under older keys can't be found anymore
+   */
+  public static final int CACHE_KEY_VERSION = 2;
 
   private static SystemDataStore _instance;
 
@@ -34,6 +61,8 @@ public class SystemDataStore {
 
   private final boolean toRecreate;
 
+  private final ResponseCacheIndex responseCacheIndex = new ResponseCacheIndex();
+
   private SystemDataStore(Context applicationContext, boolean toRecreate) {
     this.applicationContext = applicationContext;
     this.toRecreate = toRecreate;
@@ -44,7 +73,11 @@ public class SystemDataStore {
     configurationBuilder.addTypeSerializer(CachedRequestSerializer.class);
     configurationBuilder.addModelClass(ResponseCacheEntity.class);
     configurationBuilder.addTypeSerializer(CachedResponseSerializer.class);
+    configurationBuilder.addModelClass(CacheTagEntity.class);
     ActiveAndroid.initialize(configurationBuilder.create());
+    upgradeSchema();
+    purgeStaleResponseCache();
+    responseCacheIndex.rebuildInBackground();
 
     Log.d(TAG, "---------system db initialized ....");
   }
@@ -65,8 +98,176 @@ public class SystemDataStore {
     return _instance;
   }
 
+  /**
+   * Get a sub directory of the application cache directory
+   * @param name
+   * @return
+   */
+  public File getCacheDirectory(String name) {
+    return new File(applicationContext.getCacheDir(), name);
+  }
+
+  /**
+   * Index of the cached requests, built in background after initialization
+   */
+  public ResponseCacheIndex getResponseCacheIndex() {
+    return responseCacheIndex;
+  }
+
   public void drop() {
     applicationContext.deleteDatabase(DB_NAME);
   }
 
+  /**
+   * ActiveAndroid doesn't alter existing databases, add tables, columns and indexes introduced after the database was created
+   */
+  private void upgradeSchema() {
+    SQLiteDatabase db = ActiveAndroid.getDatabase();
+    for(TableInfo tableInfo : Cache.getTableInfos()) {
+      try {
+        db.execSQL(SQLiteUtils.createTableDefinition(tableInfo));
+
+        Set<String> existingColumns = getColumnNames(db, tableInfo.getTableName());
+        for (Field field : tableInfo.getFields()) {
+          String columnName = tableInfo.getColumnName(field);
+          if (!existingColumns.contains(columnName.toLowerCase())) {
+            String columnDefinition = SQLiteUtils.createColumnDefinition(tableInfo, field);
+            if (null != columnDefinition) {
+              db.execSQL("ALTER TABLE " + tableInfo.getTableName() + " ADD COLUMN " + columnDefinition);
+              Log.i(TAG, "Added column " + columnName + " to table " + tableInfo.getTableName());
+            }
+          }
+        }
+
+        for (String indexDefinition : SQLiteUtils.createIndexDefinition(tableInfo)) {
+          if (StringUtil.isNotEmpty(indexDefinition)) {
+            db.execSQL(indexDefinition);
+          }
+        }
+
+        upgradeUniqueGroups(db, tableInfo);
+      } catch (SQLException e) {
+        Log.e(TAG, "Failed to upgrade table " + tableInfo.getTableName(), e);
+      }
+    }
+  }
+
+  /**
+   * Remove cached responses stored under an older version of the cache key, their body files go with the next compaction
+   */
+  private void purgeStaleResponseCache() {
+    SharedPreferences prefs = applicationContext.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    if(prefs.getInt(PREF_CACHE_KEY_VERSION, 1) >= CACHE_KEY_VERSION) {
+      return;
+    }
+
+    SQLiteDatabase db = ActiveAndroid.getDatabase();
+    db.beginTransaction();
+    try {
+      int deleted = db.delete(Cache.getTableName(ResponseCacheEntity.class), null, null);
+      db.delete(Cache.getTableName(CacheTagEntity.class), null, null);
+      db.setTransactionSuccessful();
+      Log.i(TAG, "Cache key changed to version " + CACHE_KEY_VERSION + ", " + deleted + " cached responses removed");
+    } catch (SQLException e) {
+      Log.e(TAG, "Failed to remove cached responses of older cache key", e);
+      return;
+    } finally {
+      db.endTransaction();
+    }
+    prefs.edit().putInt(PREF_CACHE_KEY_VERSION, CACHE_KEY_VERSION).apply();
+  }
+
+  /**
+   * Tables created before a unique group was declared get a unique index instead of the table constraint,
+   * duplicates (except the latest row) are removed first
+   */
+  private static void upgradeUniqueGroups(SQLiteDatabase db, TableInfo tableInfo) {
+    Map<String, Set<String>> uniqueGroups = new HashMap<>();
+    for (Field field : tableInfo.getFields()) {
+      Column column = field.getAnnotation(Column.class);
+      if (null != column) {
+        for (String group : column.uniqueGroups()) {
+          Set<String> columns = uniqueGroups.get(group);
+          if (null == columns) {
+            columns = new LinkedHashSet<>();
+            uniqueGroups.put(group, columns);
+          }
+          columns.add(tableInfo.getColumnName(field).toLowerCase());
+        }
+      }
+    }
+    if (uniqueGroups.isEmpty()) {
+      return;
+    }
+
+    String tableName = tableInfo.getTableName();
+    List<Set<String>> uniqueIndexes = getUniqueIndexes(db, tableName);
+    for (Map.Entry<String, Set<String>> group : uniqueGroups.entrySet()) {
+      if (uniqueIndexes.contains(group.getValue())) {
+        continue;
+      }
+
+      String columns = TextUtils.join(", ", group.getValue());
+      db.beginTransaction();
+      try {
+        db.execSQL("DELETE FROM " + tableName + " WHERE " + tableInfo.getIdName() + " NOT IN (SELECT MAX("
+            + tableInfo.getIdName() + ") FROM " + tableName + " GROUP BY " + columns + ")");
+        db.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS unique_" + tableName + "_" + group.getKey()
+            + " ON " + tableName + "(" + columns + ")");
+        db.setTransactionSuccessful();
+        Log.i(TAG, "Added unique index on (" + columns + ") to table " + tableName);
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  private static List<Set<String>> getUniqueIndexes(SQLiteDatabase db, String tableName) {
+    List<String> indexNames = new ArrayList<>();
+    Cursor cursor = db.rawQuery("PRAGMA index_list(" + tableName + ")", null);
+    try {
+      int nameIndex = cursor.getColumnIndex("name");
+      int uniqueIndex = cursor.getColumnIndex("unique");
+      while (cursor.moveToNext()) {
+        if (cursor.getInt(uniqueIndex) == 1) {
+          indexNames.add(cursor.getString(nameIndex));
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+
+    List<Set<String>> uniqueIndexes = new ArrayList<>();
+    for (String indexName : indexNames) {
+      Set<String> columns = new LinkedHashSet<>();
+      cursor = db.rawQuery("PRAGMA index_info(" + indexName + ")", null);
+      try {
+        int nameIndex = cursor.getColumnIndex("name");
+        while (cursor.moveToNext()) {
+          columns.add(cursor.getString(nameIndex).toLowerCase());
+        }
+      } finally {
+        cursor.close();
+      }
+      uniqueIndexes.add(columns);
+    }
+
+    return uniqueIndexes;
+  }
+
+  private static Set<String> getColumnNames(SQLiteDatabase db, String tableName) {
+    Set<String> columnNames = new HashSet<>();
+    Cursor cursor = db.rawQuery("PRAGMA table_info(" + tableName + ")", null);
+    try {
+      int nameIndex = cursor.getColumnIndex("name");
+      while (cursor.moveToNext()) {
+        columnNames.add(cursor.getString(nameIndex).toLowerCase());
+      }
+    } finally {
+      cursor.close();
+    }
+
+    return columnNames;
+  }
+
 }
@@ -0,0 +1,47 @@
+/*
+ *  Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package com.magnet.max.android.rest.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.Retention;
+import java.lang.annotation.Target;
+
+import static java.lang.annotation.ElementType.METHOD;
+import static java.lang.annotation.RetentionPolicy.RUNTIME;
+
+/**
+ * Cache key configuration for the response cache.
+ * <p>
+ * Query parameters are always sorted by name when computing the key, so the order doesn't matter.
+ * Parameters listed in ignoredParams (e.g. cache-busting timestamps) are left out of the key,
+ * headers listed in headers are added to it.
+ * <p>
+ * Simple Example:
+ * <pre>
+ * &#64;CacheKey(ignoredParams={"_ts"}, headers={"Accept-Language"})
+ * &#64;GET("/products")
+ * MagnetCall&lt;List&lt;Product&gt;&gt; search(@Query("q") String q, @Query("_ts") long timestamp);
+ * </pre>
+ */
+@Documented
+@Target(METHOD)
+@Retention(RUNTIME)
+public @interface CacheKey {
+  String[] ignoredParams() default {};
+  String[] headers() default {};
+}
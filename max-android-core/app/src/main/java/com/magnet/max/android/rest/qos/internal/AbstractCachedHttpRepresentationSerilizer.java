@@ -16,6 +16,7 @@
 package com.magnet.max.android.rest.qos.internal;
 
 import android.util.Base64;
+import android.util.Log;
 import com.activeandroid.serializer.TypeSerializer;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -26,16 +27,88 @@ import com.google.gson.JsonParseException;
 import com.google.gson.JsonPrimitive;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import java.io.IOException;
 import java.lang.reflect.Type;
+import okio.Buffer;
 
+/**
+ * Stores {@link CachedHttpRepresentation} as a compact binary BLOB :
+ * magic byte, format version, then the record written by {@link CachedHttpRepresentation#writeTo}.
+ * Rows written in the legacy Gson+Base64 JSON format are still readable and flagged for rewrite.
+ */
 abstract class AbstractCachedHttpRepresentationSerilizer extends TypeSerializer {
+  private static final String TAG = AbstractCachedHttpRepresentationSerilizer.class.getSimpleName();
+
+  // Legacy JSON always starts with '{', so it can't be mistaken for the binary format
+  private static final byte BINARY_FORMAT_MAGIC = (byte) 0xCA;
+  private static final byte BINARY_FORMAT_VERSION = 1;
+
   private static Gson gson;
 
-  @Override public String serialize(Object data) {
+  @Override public Class<?> getSerializedType() {
+    return byte[].class;
+  }
+
+  @Override public byte[] serialize(Object data) {
     if(null == data) {
       return null;
     }
-    return getGson().toJson(data);
+
+    try {
+      Buffer buffer = new Buffer();
+      buffer.writeByte(BINARY_FORMAT_MAGIC);
+      buffer.writeByte(BINARY_FORMAT_VERSION);
+      ((CachedHttpRepresentation) data).writeTo(buffer);
+      return buffer.readByteArray();
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to serialize " + data, e);
+      return null;
+    }
+  }
+
+  @Override public CachedHttpRepresentation deserialize(Object data) {
+    if(null == data) {
+      return null;
+    }
+
+    if(data instanceof String) {
+      return fromLegacyFormat((String) data);
+    }
+
+    byte[] bytes = (byte[]) data;
+    if(bytes.length > 1 && bytes[0] == BINARY_FORMAT_MAGIC) {
+      if(bytes[1] != BINARY_FORMAT_VERSION) {
+        Log.w(TAG, "Unsupported cache format version " + bytes[1]);
+        return null;
+      }
+
+      try {
+        Buffer buffer = new Buffer();
+        buffer.write(bytes, 2, bytes.length - 2);
+        CachedHttpRepresentation representation = newRepresentation();
+        representation.readFrom(buffer);
+        return representation;
+      } catch (IOException e) {
+        Log.e(TAG, "Failed to deserialize " + getDeserializedType().getSimpleName(), e);
+        return null;
+      }
+    } else {
+      return fromLegacyFormat(new String(bytes, CacheUtils.UTF_8));
+    }
+  }
+
+  /**
+   * Create an empty instance of the representation to read into
+   */
+  protected abstract CachedHttpRepresentation newRepresentation();
+
+  private CachedHttpRepresentation fromLegacyFormat(String json) {
+    CachedHttpRepresentation representation = (CachedHttpRepresentation) getGson().fromJson(json, getDeserializedType());
+    if(null != representation) {
+      representation.isLegacyFormat = true;
+    }
+
+    return representation;
   }
 
   protected Gson getGson() {
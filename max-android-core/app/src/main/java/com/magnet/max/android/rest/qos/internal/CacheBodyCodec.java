@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Response;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import okio.Buffer;
+import okio.DeflaterSink;
+import okio.GzipSource;
+import okio.InflaterSource;
+import okio.Source;
+
+/**
+ * Compression of cached bodies, chosen per entry : inline bodies are deflated, body files are gzipped
+ */
+public final class CacheBodyCodec {
+  public static final String DEFLATE = "deflate";
+  public static final String GZIP = "gzip";
+
+  /**
+   * Smaller bodies don't gain enough to pay for the inflater
+   */
+  public static final int MIN_COMPRESS_SIZE = 1024;
+
+  private CacheBodyCodec() {
+  }
+
+  /**
+   * Whether the body of the response is text-like and not already encoded by the server
+   */
+  public static boolean isCompressible(Response response) {
+    if(null != response.header("Content-Encoding")) {
+      return false;
+    }
+
+    String contentLength = response.header("Content-Length");
+    if(null != contentLength) {
+      try {
+        if(Long.parseLong(contentLength) < MIN_COMPRESS_SIZE) {
+          return false;
+        }
+      } catch (NumberFormatException e) {
+        // Ignore invalid header
+      }
+    }
+
+    MediaType mediaType = null != response.header("Content-Type") ? MediaType.parse(response.header("Content-Type")) : null;
+    if(null == mediaType) {
+      return false;
+    }
+    String subtype = mediaType.subtype().toLowerCase();
+    return "text".equalsIgnoreCase(mediaType.type()) || subtype.contains("json") || subtype.contains("xml")
+        || subtype.contains("javascript") || subtype.contains("x-www-form-urlencoded");
+  }
+
+  /**
+   * @return the deflated body, or null if the body is too small or doesn't shrink
+   */
+  public static byte[] deflate(byte[] body) {
+    if(null == body || body.length < MIN_COMPRESS_SIZE) {
+      return null;
+    }
+
+    Buffer buffer = new Buffer();
+    DeflaterSink sink = new DeflaterSink(buffer, new Deflater());
+    try {
+      sink.write(new Buffer().write(body), body.length);
+      sink.close();
+    } catch (IOException e) {
+      // Shouldn't happen with in-memory buffers
+      throw new AssertionError(e);
+    }
+
+    return buffer.size() < body.length ? buffer.readByteArray() : null;
+  }
+
+  /**
+   * Decompress the source on read according to the codec
+   */
+  public static Source decode(String codec, Source source) {
+    if(DEFLATE.equals(codec)) {
+      return new InflaterSource(source, new Inflater());
+    } else if(GZIP.equals(codec)) {
+      return new GzipSource(source);
+    }
+
+    return source;
+  }
+}
@@ -15,32 +15,186 @@
  */
 package com.magnet.max.android.rest.qos.internal;
 
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 import android.util.Log;
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.Cache;
+import com.activeandroid.query.Delete;
 import com.activeandroid.query.Select;
+import com.activeandroid.query.Update;
+import com.magnet.max.android.MaxCore;
+import com.magnet.max.android.auth.AuthTokenProvider;
+import com.magnet.max.android.config.MaxAndroidConfig;
 import com.magnet.max.android.connectivity.ConnectivityManager;
+import com.magnet.max.android.logging.EventLog;
+import com.magnet.max.android.logging.Logger;
+import com.magnet.max.android.rest.CacheInvalidationRule;
 import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.SystemDataStore;
+import com.magnet.max.android.util.AuthUtil;
+import com.magnet.max.android.util.StringUtil;
+import com.squareup.okhttp.CacheControl;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 import com.squareup.okhttp.ResponseBody;
+import com.squareup.okhttp.internal.http.HttpDate;
+import com.squareup.okhttp.internal.http.OkHeaders;
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+import okio.Okio;
 
 public class CacheManager {
   private static final String TAG = CacheManager.class.getSimpleName();
-  private static final int DEFAULT_CACHE_AGE = 7 * 24 * 3600 * 1000; //One week
+  /**
+   * Bodies larger than this are stored in files instead of the database row
+   */
+  public static final int MAX_INLINE_BODY_SIZE = 256 * 1024; //256K
+  private static final String BODY_STORE_DIRECTORY = "magnet_cache_bodies";
+
+  /**
+   * Expired caches are kept for revalidation for this long before they're purged
+   */
+  private static final long EXPIRED_CACHE_RETENTION = 24 * 3600 * 1000L; //One day
+  private static final long ORPHAN_BODY_FILE_GRACE = 10 * 60 * 1000L; //10 minutes
+  private static final long COMPACTION_INITIAL_DELAY = 30; // Seconds
+  private static final long COMPACTION_INTERVAL = 3600; // Seconds
+  private static final int DELETE_BATCH_SIZE = 500;
+
+  private static final String UPSERT_SQL = "INSERT OR REPLACE INTO ResponseCacheEntity (requestHash, method, url, "
+      + "isOfflineCache, response, responseCode, createdAt, updatedAt, expiredAt, etag, lastModified, size, bodyFile, owner, "
+      + "varyHeaders) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  private static final String INSERT_TAG_SQL = "INSERT OR IGNORE INTO CacheTagEntity (requestHash, tag) VALUES (?, ?)";
+
+  private static final String STATS_EVENT_CATEGORY = "cache";
+  private static final String STATS_EVENT_NAME = "CacheStats";
+
+  private static final String HEADER_ETAG = "ETag";
+  private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+  private static final String HEADER_EXPIRES = "Expires";
+  private static final String HEADER_DATE = "Date";
+  private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+  private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+  private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+  private final ResponseMemoryCache memoryCache;
+  private CachedBodyStore bodyStore;
+
+  private volatile long maxCacheSize = MaxAndroidConfig.DEFAULT_CACHE_MAX_SIZE;
+  private volatile int maxCacheEntries = MaxAndroidConfig.DEFAULT_CACHE_MAX_ENTRIES;
+  private ScheduledExecutorService scheduledExecutor;
+  private boolean isCompactionScheduled;
+  private ScheduledFuture<?> statsReportFuture;
+
+  private final CachedResponseSerializer responseSerializer = new CachedResponseSerializer();
+  private SQLiteStatement upsertStatement;
+  private SQLiteStatement insertTagStatement;
+
+  private final CacheStats stats = new CacheStats();
+  private long lastReportedLookupCount;
+
+  private final List<CacheInvalidationRule> invalidationRules = new CopyOnWriteArrayList<>();
+
+  private final AuthTokenProvider authTokenProvider;
+  // Owner of the cache of each request, resolved once so a login/logout in flight can't move it to another partition
+  private final Map<Request, String> requestOwners = Collections.synchronizedMap(new WeakHashMap<Request, String>());
+
+  public CacheManager() {
+    this(new ResponseMemoryCache(), null);
+  }
+
+  public CacheManager(AuthTokenProvider authTokenProvider) {
+    this(new ResponseMemoryCache(), authTokenProvider);
+  }
+
+  public CacheManager(ResponseMemoryCache memoryCache, AuthTokenProvider authTokenProvider) {
+    this.memoryCache = memoryCache;
+    this.authTokenProvider = authTokenProvider;
+  }
+
+  /**
+   * Look up the cache of the request in memory then database, the result is passed to the other lookups of the call
+   * so the database is queried once
+   * @param request
+   * @param options
+   * @return
+   */
+  public CacheLookup lookup(Request request, CacheOptions options) {
+    long startTime = System.nanoTime();
+    String requestHash = getCacheKey(request);
+
+    // The memory cache only has online caches, the latest of online and offline ones is in the database
+    ResponseCacheEntity operation = options.isAlwaysUseCacheIfOffline() ? null : memoryCache.get(requestHash);
+    if(null == operation) {
+      operation = findLatestCache(requestHash, request, options);
+      memoryCache.put(requestHash, operation);
+    }
+
+    return new CacheLookup(requestHash, operation, System.nanoTime() - startTime);
+  }
 
   public Response getCachedResponse(Request request, CacheOptions options) {
-    String requestHash = CacheUtils.getRequestHash(request);
+    return getCachedResponse(request, options, lookup(request, options));
+  }
 
-    ResponseCacheEntity operation = findLatestCache(requestHash, request, options);
+  /**
+   * Get the cache if it's not expired, or expired but allowed to be used offline
+   * @param request
+   * @param options
+   * @param lookup result of {@link #lookup(Request, CacheOptions)} for the request
+   * @return
+   */
+  public Response getCachedResponse(Request request, CacheOptions options, CacheLookup lookup) {
+    // Lookup time is included in the stats
+    long startTime = System.nanoTime() - lookup.lookupNanos;
+    String requestHash = lookup.requestHash;
+    ResponseCacheEntity operation = lookup.operation;
+    if(null != operation && null != operation.response && !isVaryMatched(operation, request)) {
+      Log.d(TAG, "Cache hited but Vary headers don't match for request " + request.urlString());
+      stats.recordMiss(CacheUtils.getUrlTemplate(request), System.nanoTime() - startTime);
+      return null;
+    }
+    if(null != operation && null != operation.response && !operation.response.isBodyAvailable()) {
+      Log.w(TAG, "Cached body file is missing for request " + request.urlString() + ", removing cache");
+      memoryCache.remove(requestHash);
+      // Entities written by upsert don't carry their row id
+      new Delete().from(ResponseCacheEntity.class)
+          .where("requestHash = ? AND isOfflineCache = ?", requestHash, operation.isOfflineCache ? 1 : 0).execute();
+      stats.recordMiss(CacheUtils.getUrlTemplate(request), System.nanoTime() - startTime);
+      return null;
+    }
     if (null != operation && null != operation.response) {
       long currentTimestamp = System.currentTimeMillis();
       if(operation.getExpiredAt() >= currentTimestamp) {
         Log.d(TAG, "Cache hited and not expired for request " + request.urlString() + " with CallOptions " + options);
+        stats.recordHit(CacheUtils.getUrlTemplate(request), System.nanoTime() - startTime);
         return operation.response.toResponse(request);
       } else if(options.isAlwaysUseCacheIfOffline()) {
         boolean isOffline = ConnectivityManager.getInstance().getConnectivityStatus() == ConnectivityManager.TYPE_NOT_CONNECTED;
         Log.d(TAG, "Cache hited, expired but isAlwaysUseCacheIfOffline (offline = " + isOffline + ") for request " + request.urlString() + " with CallOptions " + options);
         if(isOffline) {
+          stats.recordOfflineHit(CacheUtils.getUrlTemplate(request), System.nanoTime() - startTime);
           return operation.response.toResponse(request);
         }
       } else {
@@ -48,11 +202,117 @@ public class CacheManager {
       }
     }
 
+    stats.recordMiss(CacheUtils.getUrlTemplate(request), System.nanoTime() - startTime);
     return null;
   }
 
-  public Response cacheResponse(Request request, Response response, CacheOptions options) {
-    String requestHash = CacheUtils.getRequestHash(request);
+  public Response getStaleResponse(Request request, CacheOptions options) {
+    return getStaleResponse(request, options, lookup(request, options));
+  }
+
+  /**
+   * Get the expired successful cache if it's still within the staleWhileRevalidate window of the options,
+   * negatively cached responses are never served stale
+   * @param request
+   * @param options
+   * @param lookup result of {@link #lookup(Request, CacheOptions)} for the request
+   * @return
+   */
+  public Response getStaleResponse(Request request, CacheOptions options, CacheLookup lookup) {
+    if(options.getStaleWhileRevalidate() <= 0) {
+      return null;
+    }
+
+    ResponseCacheEntity operation = lookup.operation;
+    if(null != operation && null != operation.response && null != operation.getExpiredAt()
+        && operation.getExpiredAt() > 0 && isSuccessful(operation.responseCode)
+        && operation.response.isBodyAvailable() && isVaryMatched(operation, request)
+        && operation.getExpiredAt() + options.getStaleWhileRevalidate() * 1000L >= System.currentTimeMillis()) {
+      Log.d(TAG, "Stale cache hited for request " + request.urlString() + " with CallOptions " + options);
+      stats.recordStaleHit(CacheUtils.getUrlTemplate(request));
+      return operation.response.toResponse(request);
+    }
+
+    return null;
+  }
+
+  /**
+   * Get the last successful cache if it's still within the staleIfError window of the options,
+   * used when the network call fails or the server responds 5xx
+   * @param request
+   * @param options
+   * @return
+   */
+  public Response getStaleIfErrorResponse(Request request, CacheOptions options) {
+    if(options.getStaleIfError() <= 0) {
+      return null;
+    }
+
+    ResponseCacheEntity operation = findLatestCache(getCacheKey(request), request, options);
+    if(null != operation && null != operation.response && null != operation.getExpiredAt()
+        && isSuccessful(operation.responseCode) && operation.response.isBodyAvailable() && isVaryMatched(operation, request)
+        && operation.getExpiredAt() + options.getStaleIfError() * 1000L >= System.currentTimeMillis()) {
+      Log.d(TAG, "Stale cache hited on error for request " + request.urlString() + " with CallOptions " + options);
+      stats.recordStaleHit(CacheUtils.getUrlTemplate(request));
+      return operation.response.toResponse(request);
+    }
+
+    return null;
+  }
+
+  /**
+   * Cache the response while the caller reads its body, the cache is written once the body is fully read
+   * @param request
+   * @param response
+   * @param options
+   * @return the response to return to the caller
+   * @throws IOException
+   */
+  public Response cacheResponse(final Request request, final Response response, final CacheOptions options) throws IOException {
+    if(null == response.body()) {
+      saveResponse(request, response, new CachedResponse(response, null, null), options);
+      return response;
+    }
+
+    final boolean isCompressible = CacheBodyCodec.isCompressible(response);
+    CacheWritingSource source = new CacheWritingSource(response.body().source(), MAX_INLINE_BODY_SIZE,
+        new CacheWritingSource.Listener() {
+          @Override public CachedBodyStore.Writer newFileWriter() throws IOException {
+            try {
+              return getBodyStore().newWriter(isCompressible);
+            } catch (IllegalStateException e) {
+              throw new IOException("Body store isn't available", e);
+            }
+          }
+
+          @Override public void onComplete(byte[] body, File bodyFile) {
+            try {
+              CachedResponse cachedResponse;
+              if(null != bodyFile) {
+                cachedResponse = new CachedResponse(response, null, bodyFile.getAbsolutePath(),
+                    isCompressible ? CacheBodyCodec.GZIP : null);
+              } else {
+                byte[] deflated = isCompressible ? CacheBodyCodec.deflate(body) : null;
+                cachedResponse = null != deflated ? new CachedResponse(response, deflated, null, CacheBodyCodec.DEFLATE)
+                    : new CachedResponse(response, body, null);
+              }
+              saveResponse(request, response, cachedResponse, options);
+            } catch (RuntimeException e) {
+              Log.e(TAG, "Failed to save cache for request " + request.urlString(), e);
+            }
+          }
+
+          @Override public void onAbort() {
+            Log.d(TAG, "Body isn't fully read, skip caching for request " + request.urlString());
+          }
+        });
+
+    return response.newBuilder().body(ResponseBody.create(response.body().contentType(),
+        response.body().contentLength(), Okio.buffer(source))).build();
+  }
+
+  private void saveResponse(Request request, Response response, CachedResponse cachedResponse, CacheOptions options) {
+    String requestHash = getCacheKey(request);
     ResponseCacheEntity operation = findLatestCache(requestHash, request, options);
     long currentTimestamp = System.currentTimeMillis();
     if(null == operation) {
@@ -61,35 +321,714 @@ public class CacheManager {
       operation.url = request.urlString();
       operation.httpMethod = request.method();
       operation.requestHash = requestHash;
-      operation.response = new CachedResponse(response);
-      operation.responseCode = response.code();
+      operation.response = cachedResponse;
       operation.isOfflineCache = options.isAlwaysUseCacheIfOffline();
+      operation.owner = StringUtil.isNotEmpty(getCacheOwner(request)) ? getCacheOwner(request) : null;
 
       Log.d(TAG, "Adding cache for request " + request);
     } else {
       //Update body
-      operation.response = new CachedResponse(response);
+      operation.response = cachedResponse;
       Log.d(TAG, "Updating cache for request " + request);
     }
+    operation.bodyFile = operation.response.getBodyFile();
+    operation.size = operation.response.getSize();
+    operation.etag = response.header(HEADER_ETAG);
+    operation.lastModified = response.header(HEADER_LAST_MODIFIED);
+    operation.varyHeaders = CacheUtils.getVaryHeaders(request, response);
+    operation.responseCode = response.code();
+    operation.updatedAt = currentTimestamp;
+    if(isNegativeResponse(response)) {
+      // Replaces the previous response, so it shouldn't outlive the negative TTL
+      operation.expiredAt = currentTimestamp + options.getNegativeCacheAge() * 1000L;
+    } else {
+      long newExpiredTime = getNewExpiredTime(options, response.headers(), currentTimestamp);
+      if(null == operation.getExpiredAt() || newExpiredTime > operation.getExpiredAt()) {
+        operation.expiredAt = newExpiredTime;
+      }
+    }
+    upsert(operation, options.getTags());
+    getCacheIndex().add(requestHash);
+    // Write through to memory
+    memoryCache.put(requestHash, operation);
+    stats.recordStored(CacheUtils.getUrlTemplate(request), operation.size);
+  }
+
+  public Request newConditionalRequest(Request request, CacheOptions options) {
+    return newConditionalRequest(request, options, lookup(request, options));
+  }
+
+  /**
+   * Create a conditional request to revalidate the expired cache of the request
+   * @param request
+   * @param options
+   * @param lookup result of {@link #lookup(Request, CacheOptions)} for the request
+   * @return null if there is no cache with ETag or Last-Modified for the request
+   */
+  public Request newConditionalRequest(Request request, CacheOptions options, CacheLookup lookup) {
+    if(null != request.header(HEADER_IF_NONE_MATCH) || null != request.header(HEADER_IF_MODIFIED_SINCE)) {
+      // Conditional request made by the caller
+      return null;
+    }
+
+    ResponseCacheEntity operation = lookup.operation;
+    if(null == operation || null == operation.response || !operation.response.isBodyAvailable()
+        || (null == operation.etag && null == operation.lastModified) || !isVaryMatched(operation, request)) {
+      return null;
+    }
+
+    Request.Builder builder = request.newBuilder();
+    if(null != operation.etag) {
+      builder.header(HEADER_IF_NONE_MATCH, operation.etag);
+    }
+    if(null != operation.lastModified) {
+      builder.header(HEADER_IF_MODIFIED_SINCE, operation.lastModified);
+    }
+
+    return builder.build();
+  }
+
+  /**
+   * Strip the validators added by {@link #newConditionalRequest}, e.g. when the cache is gone before the 304 comes back
+   * @param conditionalRequest
+   * @return
+   */
+  public static Request newUnconditionalRequest(Request conditionalRequest) {
+    return conditionalRequest.newBuilder().removeHeader(HEADER_IF_NONE_MATCH).removeHeader(HEADER_IF_MODIFIED_SINCE)
+        .build();
+  }
+
+  public Response refreshCachedResponse(Request request, Response notModifiedResponse, CacheOptions options) {
+    return refreshCachedResponse(request, notModifiedResponse, options, lookup(request, options));
+  }
+
+  /**
+   * Refresh the expiration of the cache when the server responds 304 Not Modified, and return the cached response
+   * @param request
+   * @param notModifiedResponse
+   * @param options
+   * @param lookup the lookup the conditional request was made from
+   * @return null if the cache is gone
+   */
+  public Response refreshCachedResponse(Request request, Response notModifiedResponse, CacheOptions options,
+      CacheLookup lookup) {
+    String requestHash = lookup.requestHash;
+    ResponseCacheEntity operation = lookup.operation;
+    if(null == operation || null == operation.response || !operation.response.isBodyAvailable()
+        || !isVaryMatched(operation, request)) {
+      return null;
+    }
+
+    long currentTimestamp = System.currentTimeMillis();
     operation.updatedAt = currentTimestamp;
-    long newExpiredTime = 0;
+    // 304 might not repeat the caching headers
+    Headers policyHeaders = notModifiedResponse.headers();
+    if(null == notModifiedResponse.header(HEADER_CACHE_CONTROL) && null == notModifiedResponse.header(HEADER_EXPIRES)
+        && null != operation.response.headers) {
+      policyHeaders = Headers.of(operation.response.headers);
+    }
+    operation.expiredAt = getNewExpiredTime(options, policyHeaders, currentTimestamp);
+    // Only touch the timestamps, the stored response is unchanged
+    new Update(ResponseCacheEntity.class).set("updatedAt = ?, expiredAt = ?", operation.updatedAt, operation.expiredAt)
+        .where("requestHash = ? AND isOfflineCache = ?", requestHash, operation.isOfflineCache ? 1 : 0).execute();
+    memoryCache.put(requestHash, operation);
+
+    Log.d(TAG, "Cache revalidated for request " + request.urlString());
+    stats.recordRevalidation(CacheUtils.getUrlTemplate(request));
+    return operation.response.toResponse(request).newBuilder()
+        .networkResponse(notModifiedResponse.newBuilder().body(null).build()).build();
+  }
+
+  public void addInvalidationRule(CacheInvalidationRule rule) {
+    invalidationRules.add(rule);
+  }
+
+  public void removeInvalidationRule(CacheInvalidationRule rule) {
+    invalidationRules.remove(rule);
+  }
+
+  /**
+   * Invalidate the caches affected by a successful call : the given tags and, for mutating calls, the matching rules
+   * @param request
+   * @param tags
+   */
+  public void invalidate(Request request, Collection<String> tags) {
+    Set<String> tagsToInvalidate = new HashSet<>();
+    Set<String> pathsToInvalidate = new HashSet<>();
+    if(null != tags) {
+      tagsToInvalidate.addAll(tags);
+    }
+    for(CacheInvalidationRule rule : invalidationRules) {
+      if(rule.matches(request)) {
+        Log.d(TAG, "Cache invalidation rule " + rule + " matched for request " + request.urlString());
+        tagsToInvalidate.addAll(rule.getTags());
+        pathsToInvalidate.addAll(rule.getPaths());
+      }
+    }
+
+    if(!tagsToInvalidate.isEmpty()) {
+      invalidateTags(tagsToInvalidate);
+    }
+    if(!pathsToInvalidate.isEmpty()) {
+      invalidatePaths(pathsToInvalidate);
+    }
+  }
+
+  /**
+   * Remove all caches with any of the tags
+   * @param tags
+   * @return number of entries removed
+   */
+  public int invalidateTags(Collection<String> tags) {
+    if(null == tags || tags.isEmpty()) {
+      return 0;
+    }
+
+    String[] args = tags.toArray(new String[tags.size()]);
+    String tagClause = "tag IN (" + TextUtils.join(",", Collections.nCopies(args.length, "?")) + ")";
+    String tableName = Cache.getTableName(ResponseCacheEntity.class);
+    String tagTableName = Cache.getTableName(CacheTagEntity.class);
+    SQLiteDatabase db = ActiveAndroid.getDatabase();
+    int deleted;
+
+    ActiveAndroid.beginTransaction();
+    try {
+      Cursor cursor = db.rawQuery("SELECT DISTINCT requestHash FROM " + tagTableName + " WHERE " + tagClause, args);
+      try {
+        while (cursor.moveToNext()) {
+          memoryCache.remove(cursor.getString(0));
+        }
+      } finally {
+        cursor.close();
+      }
+
+      deleted = db.delete(tableName, "requestHash IN (SELECT requestHash FROM " + tagTableName + " WHERE " + tagClause + ")", args);
+      db.delete(tagTableName, tagClause, args);
+
+      ActiveAndroid.setTransactionSuccessful();
+    } finally {
+      ActiveAndroid.endTransaction();
+    }
+
+    stats.recordEvictions(deleted);
+    Log.d(TAG, "Cache invalidated for tags " + tags + ", " + deleted + " entries removed");
+    return deleted;
+  }
+
+  /**
+   * Remove all cached GET responses under any of the paths, matched on whole path segments,
+   * e.g. "user/users" matches "/api/user/users" and "/api/user/users/1" but not "/api/user/users2"
+   * @param paths
+   * @return number of entries removed
+   */
+  public int invalidatePaths(Collection<String> paths) {
+    if(null == paths || paths.isEmpty()) {
+      return 0;
+    }
+
+    String tableName = Cache.getTableName(ResponseCacheEntity.class);
+    SQLiteDatabase db = ActiveAndroid.getDatabase();
+    Set<String> requestHashes = new HashSet<>();
+    int deleted = 0;
+
+    ActiveAndroid.beginTransaction();
+    try {
+      List<Long> ids = new ArrayList<>();
+      for(String path : paths) {
+        String segments = trimSlashes(path);
+        if(segments.isEmpty()) {
+          continue;
+        }
+        // Narrow down with LIKE, the segment boundaries are checked on the parsed path.
+        // instr() isn't available before SQLite 3.7.15 (API 21), escape the wildcards of LIKE instead
+        Cursor cursor = db.rawQuery("SELECT Id, requestHash, url FROM " + tableName
+            + " WHERE method = 'GET' AND url LIKE ? ESCAPE '\\'", new String[] { "%/" + escapeLike(segments) + "%" });
+        try {
+          while (cursor.moveToNext()) {
+            HttpUrl url = HttpUrl.parse(cursor.getString(2));
+            if(null != url && ("/" + url.encodedPath() + "/").contains("/" + segments + "/")) {
+              ids.add(cursor.getLong(0));
+              requestHashes.add(cursor.getString(1));
+            }
+          }
+        } finally {
+          cursor.close();
+        }
+      }
+      for(Long id : ids) {
+        deleted += db.delete(tableName, "Id = ?", new String[] { String.valueOf(id) });
+      }
+
+      ActiveAndroid.setTransactionSuccessful();
+    } finally {
+      ActiveAndroid.endTransaction();
+    }
+
+    for(String requestHash : requestHashes) {
+      memoryCache.remove(requestHash);
+    }
+
+    stats.recordEvictions(deleted);
+    Log.d(TAG, "Cache invalidated for paths " + paths + ", " + deleted + " entries removed");
+    return deleted;
+  }
+
+  private static String trimSlashes(String path) {
+    int start = 0;
+    int end = path.length();
+    while(start < end && path.charAt(start) == '/') {
+      start++;
+    }
+    while(end > start && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    return path.substring(start, end);
+  }
+
+  /**
+   * Escape '\', '%' and '_' so LIKE ... ESCAPE '\' matches them literally
+   */
+  private static String escapeLike(String value) {
+    return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+  }
+
+  /**
+   * Remove all cached responses of the user with one indexed delete
+   * @param userId
+   * @return number of entries removed
+   */
+  public int dropPartition(String userId) {
+    if(StringUtil.isEmpty(userId)) {
+      return 0;
+    }
+
+    int deleted = ActiveAndroid.getDatabase().delete(Cache.getTableName(ResponseCacheEntity.class), "owner = ?",
+        new String[] { userId });
+    if(deleted > 0) {
+      memoryCache.clear();
+    }
+
+    stats.recordEvictions(deleted);
+    Log.d(TAG, "Cache of user " + userId + " dropped, " + deleted + " entries removed");
+    return deleted;
+  }
+
+  /**
+   * Set the size limits and start compacting the cache periodically in background
+   * @param maxSize max size in bytes
+   * @param maxEntries max number of entries
+   */
+  public synchronized void scheduleCompaction(long maxSize, int maxEntries) {
+    this.maxCacheSize = maxSize;
+    this.maxCacheEntries = maxEntries;
+
+    if(!isCompactionScheduled) {
+      isCompactionScheduled = true;
+      getScheduledExecutor().scheduleWithFixedDelay(new Runnable() {
+        @Override public void run() {
+          try {
+            compact();
+          } catch (Exception e) {
+            Log.e(TAG, "Failed to compact cache", e);
+          }
+        }
+      }, COMPACTION_INITIAL_DELAY, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Executor of the background maintenance : compaction and stats report
+   */
+  private synchronized ScheduledExecutorService getScheduledExecutor() {
+    if(null == scheduledExecutor) {
+      scheduledExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "CacheMaintenance");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+    }
+
+    return scheduledExecutor;
+  }
+
+  /**
+   * Purge long expired caches and evict least recently updated ones until the cache fits the size limits
+   * set by {@link #scheduleCompaction(long, int)}
+   * @return number of entries removed
+   */
+  public int compact() {
+    return compact(maxCacheSize, maxCacheEntries);
+  }
+
+  /**
+   * Purge long expired caches and evict least recently updated ones until the cache fits the given limits
+   * @param maxSize max size in bytes
+   * @param maxEntries max number of entries
+   * @return number of entries removed
+   */
+  public int compact(long maxSize, int maxEntries) {
+    String tableName = Cache.getTableName(ResponseCacheEntity.class);
+    SQLiteDatabase db = ActiveAndroid.getDatabase();
+    int deleted = 0;
+    long startTime = System.currentTimeMillis();
+
+    ActiveAndroid.beginTransaction();
+    try {
+      deleted += db.delete(tableName, "isOfflineCache = 0 AND expiredAt < ?",
+          new String[] { String.valueOf(startTime - EXPIRED_CACHE_RETENTION) });
+
+      long count = 0;
+      long totalSize = 0;
+      Cursor cursor = db.rawQuery("SELECT COUNT(*), SUM(size) FROM " + tableName, null);
+      try {
+        if(cursor.moveToFirst()) {
+          count = cursor.getLong(0);
+          totalSize = cursor.getLong(1);
+        }
+      } finally {
+        cursor.close();
+      }
+
+      if(count > maxEntries || totalSize > maxSize) {
+        List<Long> toEvict = new ArrayList<>();
+        cursor = db.rawQuery("SELECT Id, size FROM " + tableName + " ORDER BY updatedAt ASC", null);
+        try {
+          while ((count > maxEntries || totalSize > maxSize) && cursor.moveToNext()) {
+            toEvict.add(cursor.getLong(0));
+            count--;
+            totalSize -= cursor.getLong(1);
+          }
+        } finally {
+          cursor.close();
+        }
+
+        for(int i = 0; i < toEvict.size(); i += DELETE_BATCH_SIZE) {
+          List<Long> batch = toEvict.subList(i, Math.min(i + DELETE_BATCH_SIZE, toEvict.size()));
+          deleted += db.delete(tableName, "Id IN (" + TextUtils.join(",", batch) + ")", null);
+        }
+      }
+
+      // Also covers entries removed by invalidation or dropped partitions
+      String tagTableName = Cache.getTableName(CacheTagEntity.class);
+      db.delete(tagTableName, "requestHash NOT IN (SELECT requestHash FROM " + tableName + ")", null);
+
+      ActiveAndroid.setTransactionSuccessful();
+    } finally {
+      ActiveAndroid.endTransaction();
+    }
+
+    if(deleted > 0) {
+      memoryCache.clear();
+      // Bloom filter can't remove entries
+      getCacheIndex().rebuild();
+    }
+    removeOrphanBodyFiles(db, tableName);
+
+    stats.recordEvictions(deleted);
+    Log.d(TAG, "Cache compacted, " + deleted + " entries removed in " + (System.currentTimeMillis() - startTime) + " ms");
+    return deleted;
+  }
+
+  public ResponseMemoryCache getMemoryCache() {
+    return memoryCache;
+  }
+
+  public CacheStats getStats() {
+    return stats;
+  }
+
+  /**
+   * Report the stats as {@link EventLog} through {@link Logger} periodically, skipped if there is no lookup since last report.
+   * Replaces the previously scheduled report.
+   * @param intervalSeconds
+   */
+  public synchronized void scheduleStatsReport(long intervalSeconds) {
+    if(null != statsReportFuture) {
+      statsReportFuture.cancel(false);
+    }
+    statsReportFuture = getScheduledExecutor().scheduleWithFixedDelay(new Runnable() {
+      @Override public void run() {
+        try {
+          reportStats();
+        } catch (Exception e) {
+          Log.e(TAG, "Failed to report cache stats", e);
+        }
+      }
+    }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  private void reportStats() {
+    long lookupCount = stats.getLookupCount();
+    if(lookupCount == lastReportedLookupCount || !Logger.isLoggingStarted()) {
+      return;
+    }
+    lastReportedLookupCount = lookupCount;
+
+    Logger logger = Logger.getInstance(CacheManager.class);
+    for(Map.Entry<String, CacheStats.EndpointStats> entry : stats.getEndpoints().entrySet()) {
+      Map<String, String> payload = entry.getValue().toMap();
+      payload.put("evictions", String.valueOf(stats.getEvictionCount()));
+      payload.put("since", String.valueOf(stats.getStartedAt()));
+      logger.logEvent(new EventLog.EventBuilder().category(STATS_EVENT_CATEGORY).name(STATS_EVENT_NAME)
+          .subCategory(entry.getKey()).payload(payload).build());
+    }
+  }
+
+  /**
+   * Whether the response can be cached with the options, 404/410 only with negativeCacheAge. The server policy is only applied when maxCacheAge isn't set
+   * @param response
+   * @param options
+   * @return
+   */
+  public boolean isCacheable(Response response, CacheOptions options) {
+    if(!response.isSuccessful() && !(isNegativeResponse(response) && options.getNegativeCacheAge() > 0)) {
+      return false;
+    }
+
+    if(OkHeaders.hasVaryAll(response)) {
+      return false;
+    }
+
+    if(options.getMaxCacheAge() <= 0 && options.isUseServerCachePolicy()) {
+      return !response.cacheControl().noStore();
+    }
+
+    return true;
+  }
+
+  private static boolean isNegativeResponse(Response response) {
+    return response.code() == HttpURLConnection.HTTP_NOT_FOUND || response.code() == HttpURLConnection.HTTP_GONE;
+  }
+
+  private static boolean isSuccessful(int code) {
+    return code >= 200 && code < 300;
+  }
+
+  private static long getNewExpiredTime(CacheOptions options, Headers responseHeaders, long currentTimestamp) {
     if(options.getMaxCacheAge() > 0) {
-      newExpiredTime = currentTimestamp + options.getMaxCacheAge() * 1000;
+      return currentTimestamp + options.getMaxCacheAge() * 1000L;
+    } else if(options.isUseServerCachePolicy()) {
+      return getServerExpiredTime(responseHeaders, currentTimestamp);
+    }
+
+    return 0;
+  }
+
+  /**
+   * Expiration from Cache-Control max-age or Expires of the response. Without them (or with no-cache)
+   * the cache expires immediately and is only used for revalidation or offline.
+   */
+  private static long getServerExpiredTime(Headers responseHeaders, long currentTimestamp) {
+    CacheControl cacheControl = CacheControl.parse(responseHeaders);
+    if(cacheControl.noCache()) {
+      return currentTimestamp;
+    }
+
+    if(cacheControl.maxAgeSeconds() >= 0) {
+      return currentTimestamp + cacheControl.maxAgeSeconds() * 1000L;
+    }
+
+    Date expires = HttpDate.parse(responseHeaders.get(HEADER_EXPIRES));
+    if(null != expires) {
+      // Relative to the server clock if possible
+      Date served = HttpDate.parse(responseHeaders.get(HEADER_DATE));
+      long freshness = expires.getTime() - (null != served ? served.getTime() : currentTimestamp);
+      return currentTimestamp + Math.max(0, freshness);
+    }
+
+    return currentTimestamp;
+  }
+
+  /**
+   * Only one variant is kept per request hash, a request with other values of the Vary headers
+   * misses and its response overwrites the stored variant
+   */
+  private static boolean isVaryMatched(ResponseCacheEntity operation, Request request) {
+    if(null == operation.response.headers) {
+      return true;
+    }
+
+    Set<String> varyFields = OkHeaders.varyFields(Headers.of(operation.response.headers));
+    if(varyFields.isEmpty()) {
+      return true;
+    }
+
+    Headers storedHeaders = CacheUtils.parseHeaders(operation.varyHeaders);
+    for(String field : varyFields) {
+      if(!storedHeaders.values(field).equals(request.headers(field))) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Insert or replace the cache of the request and its tags with precompiled statements in a transaction
+   */
+  private synchronized void upsert(ResponseCacheEntity operation, Set<String> tags) {
+    byte[] response = responseSerializer.serialize(operation.response);
+
+    ActiveAndroid.beginTransaction();
+    try {
+      if(null == upsertStatement) {
+        upsertStatement = ActiveAndroid.getDatabase().compileStatement(UPSERT_SQL);
+      }
+      SQLiteStatement statement = upsertStatement;
+      statement.clearBindings();
+      bindString(statement, 1, operation.requestHash);
+      bindString(statement, 2, operation.httpMethod);
+      bindString(statement, 3, operation.url);
+      statement.bindLong(4, operation.isOfflineCache ? 1 : 0);
+      if(null != response) {
+        statement.bindBlob(5, response);
+      } else {
+        statement.bindNull(5);
+      }
+      statement.bindLong(6, operation.responseCode);
+      bindLong(statement, 7, operation.createdAt);
+      bindLong(statement, 8, operation.updatedAt);
+      bindLong(statement, 9, operation.expiredAt);
+      bindString(statement, 10, operation.etag);
+      bindString(statement, 11, operation.lastModified);
+      statement.bindLong(12, operation.size);
+      bindString(statement, 13, operation.bodyFile);
+      bindString(statement, 14, operation.owner);
+      bindString(statement, 15, operation.varyHeaders);
+      statement.executeInsert();
+
+      if(null != tags && !tags.isEmpty()) {
+        if(null == insertTagStatement) {
+          insertTagStatement = ActiveAndroid.getDatabase().compileStatement(INSERT_TAG_SQL);
+        }
+        for(String tag : tags) {
+          insertTagStatement.clearBindings();
+          bindString(insertTagStatement, 1, operation.requestHash);
+          bindString(insertTagStatement, 2, tag);
+          insertTagStatement.executeInsert();
+        }
+      }
+
+      ActiveAndroid.setTransactionSuccessful();
+    } finally {
+      ActiveAndroid.endTransaction();
     }
-    if(null == operation.getExpiredAt() || newExpiredTime > operation.getExpiredAt()) {
-      operation.expiredAt = newExpiredTime;
+  }
+
+  private static void bindString(SQLiteStatement statement, int index, String value) {
+    if(null != value) {
+      statement.bindString(index, value);
+    } else {
+      statement.bindNull(index);
     }
-    operation.save();
+  }
 
-    if(null != response.body()) {
-      return response.newBuilder().body(
-          ResponseBody.create(response.body().contentType(), operation.response.body)).build();
+  private static void bindLong(SQLiteStatement statement, int index, Long value) {
+    if(null != value) {
+      statement.bindLong(index, value);
     } else {
-      return response;
+      statement.bindNull(index);
+    }
+  }
+
+  private void removeOrphanBodyFiles(SQLiteDatabase db, String tableName) {
+    File[] files = getBodyStore().getDirectory().listFiles();
+    if(null == files || files.length == 0) {
+      return;
+    }
+
+    Set<String> referencedFiles = new HashSet<>();
+    Cursor cursor = db.rawQuery("SELECT DISTINCT bodyFile FROM " + tableName + " WHERE bodyFile IS NOT NULL", null);
+    try {
+      while (cursor.moveToNext()) {
+        referencedFiles.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
+    }
+
+    // Skip recent files which might be just written and not saved in database yet
+    long threshold = System.currentTimeMillis() - ORPHAN_BODY_FILE_GRACE;
+    for(File file : files) {
+      if(!referencedFiles.contains(file.getAbsolutePath()) && file.lastModified() < threshold) {
+        if(!file.delete()) {
+          Log.w(TAG, "Failed to delete orphan body file " + file);
+        }
+      }
     }
   }
 
+  /**
+   * Cache key of the request, responses to requests authenticated with a user token are partitioned by the user
+   */
+  private String getCacheKey(Request request) {
+    String requestHash = CacheUtils.getRequestHash(request);
+    String owner = getCacheOwner(request);
+    if(StringUtil.isEmpty(owner)) {
+      return requestHash;
+    }
+
+    return ByteString.encodeUtf8(owner + ":" + requestHash).md5().hex();
+  }
+
+  /**
+   * @return empty string for shared cache
+   */
+  private String getCacheOwner(Request request) {
+    String owner = requestOwners.get(request);
+    if(null == owner) {
+      owner = resolveCacheOwner(request);
+      requestOwners.put(request, owner);
+    }
+
+    return owner;
+  }
+
+  /**
+   * Same rule as {@link com.magnet.max.android.rest.RequestInterceptor} uses to add the user token
+   */
+  private String resolveCacheOwner(Request request) {
+    if(null == authTokenProvider || !authTokenProvider.isAuthEnabled() || !authTokenProvider.isAuthRequired(request)
+        || null == authTokenProvider.getUserToken()) {
+      return "";
+    }
+    String existingToken = request.header(AuthUtil.AUTHORIZATION_HEADER);
+    if(null != existingToken && existingToken.startsWith("Basic")) {
+      return "";
+    }
+
+    String userId = getCurrentUserId();
+    // Shouldn't happen, but never fall back to the shared cache for a user token
+    return StringUtil.isNotEmpty(userId) ? userId : ByteString.encodeUtf8(authTokenProvider.getUserToken()).md5().hex();
+  }
+
+  /**
+   * Id of the logged in user, whose token is sent with the request
+   */
+  protected String getCurrentUserId() {
+    return MaxCore.getUserId();
+  }
+
+  private ResponseCacheIndex getCacheIndex() {
+    return SystemDataStore.getInstance().getResponseCacheIndex();
+  }
+
+  private synchronized CachedBodyStore getBodyStore() {
+    if(null == bodyStore) {
+      bodyStore = new CachedBodyStore(SystemDataStore.getInstance().getCacheDirectory(BODY_STORE_DIRECTORY));
+    }
+
+    return bodyStore;
+  }
+
   private ResponseCacheEntity findLatestCache(String requestHash, Request request, CacheOptions options) {
+    if(!getCacheIndex().mightContain(requestHash)) {
+      return null;
+    }
+
     //Log.d(TAG, "request hash " + requestHash + " for request \n" + request);
     List<ResponseCacheEntity> operations = new Select()
         .from(ResponseCacheEntity.class)
@@ -102,19 +1041,50 @@ public class CacheManager {
         for (int i = 0; i < operations.size(); i++) {
           if(!operations.get(i).isOfflineCache) {
             returnIndex = i;
+            break;
           }
         }
       }
-      // Pick the first one and remove all others
-      for (int i = 0; i < operations.size(); i++) {
-        if(!operations.get(i).isOfflineCache && i != returnIndex) {
-          operations.get(i).delete();
-        }
+      // Pick the latest one and remove all other online caches in one statement
+      if(operations.size() > 1) {
+        new Delete().from(ResponseCacheEntity.class)
+            .where("requestHash = ? AND isOfflineCache = 0 AND Id != ?", requestHash, operations.get(returnIndex).getId())
+            .execute();
       }
 
-      return operations.get(returnIndex);
+      ResponseCacheEntity operation = operations.get(returnIndex);
+      if(null != operation.response && operation.response.isLegacyFormat()) {
+        // Migrate to binary format
+        operation.save();
+        operation.response.isLegacyFormat = false;
+        Log.d(TAG, "Migrated cache to binary format for request " + request.urlString());
+      }
+
+      return operation;
     }
 
     return null;
   }
+
+  /**
+   * Cache of a request found by {@link #lookup(Request, CacheOptions)}
+   */
+  public static class CacheLookup {
+    private final String requestHash;
+    private final ResponseCacheEntity operation;
+    private final long lookupNanos;
+
+    private CacheLookup(String requestHash, ResponseCacheEntity operation, long lookupNanos) {
+      this.requestHash = requestHash;
+      this.operation = operation;
+      this.lookupNanos = lookupNanos;
+    }
+
+    /**
+     * @return null if the request isn't cached
+     */
+    public ResponseCacheEntity getEntity() {
+      return operation;
+    }
+  }
 }
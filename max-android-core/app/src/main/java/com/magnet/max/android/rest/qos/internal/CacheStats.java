@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the response cache broken down by endpoint (the url template of the Retrofit method if known)
+ */
+public class CacheStats {
+  /**
+   * Endpoint of the requests beyond {@link #MAX_ENDPOINTS}
+   */
+  public static final String OTHER_ENDPOINTS = "other";
+  public static final int MAX_ENDPOINTS = 100;
+
+  private final Map<String, EndpointStats> endpoints = new ConcurrentHashMap<>();
+  private final AtomicLong evictionCount = new AtomicLong();
+  private final long startedAt = System.currentTimeMillis();
+
+  public void recordHit(String endpoint, long lookupNanos) {
+    EndpointStats stats = getOrCreate(endpoint);
+    stats.hits.incrementAndGet();
+    stats.recordLookup(lookupNanos);
+  }
+
+  public void recordOfflineHit(String endpoint, long lookupNanos) {
+    EndpointStats stats = getOrCreate(endpoint);
+    stats.offlineHits.incrementAndGet();
+    stats.recordLookup(lookupNanos);
+  }
+
+  public void recordMiss(String endpoint, long lookupNanos) {
+    EndpointStats stats = getOrCreate(endpoint);
+    stats.misses.incrementAndGet();
+    stats.recordLookup(lookupNanos);
+  }
+
+  /**
+   * Expired cache served after a miss, by staleWhileRevalidate or staleIfError
+   */
+  public void recordStaleHit(String endpoint) {
+    getOrCreate(endpoint).staleHits.incrementAndGet();
+  }
+
+  public void recordRevalidation(String endpoint) {
+    getOrCreate(endpoint).revalidations.incrementAndGet();
+  }
+
+  public void recordStored(String endpoint, long bytes) {
+    EndpointStats stats = getOrCreate(endpoint);
+    stats.stores.incrementAndGet();
+    stats.bytesStored.addAndGet(bytes);
+  }
+
+  public void recordEvictions(int count) {
+    evictionCount.addAndGet(count);
+  }
+
+  public Map<String, EndpointStats> getEndpoints() {
+    return Collections.unmodifiableMap(endpoints);
+  }
+
+  /**
+   * Entries removed by compaction, invalidation or partition drop
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  public long getStartedAt() {
+    return startedAt;
+  }
+
+  /**
+   * Total number of lookups of all endpoints
+   */
+  public long getLookupCount() {
+    long count = 0;
+    for(EndpointStats stats : endpoints.values()) {
+      count += stats.getLookupCount();
+    }
+
+    return count;
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("CacheStats{").append("evictions = ").append(evictionCount).append(", ")
+        .append("endpoints = ").append(endpoints).append("}").toString();
+  }
+
+  private EndpointStats getOrCreate(String endpoint) {
+    EndpointStats stats = endpoints.get(endpoint);
+    if(null == stats) {
+      synchronized (endpoints) {
+        stats = endpoints.get(endpoint);
+        if(null == stats) {
+          if(endpoints.size() >= MAX_ENDPOINTS && !OTHER_ENDPOINTS.equals(endpoint)) {
+            return getOrCreate(OTHER_ENDPOINTS);
+          }
+          stats = new EndpointStats();
+          endpoints.put(endpoint, stats);
+        }
+      }
+    }
+
+    return stats;
+  }
+
+  public static class EndpointStats {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong offlineHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong revalidations = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+    private final AtomicLong lookupNanos = new AtomicLong();
+
+    private void recordLookup(long nanos) {
+      lookupCount.incrementAndGet();
+      lookupNanos.addAndGet(nanos);
+    }
+
+    public long getHits() {
+      return hits.get();
+    }
+
+    public long getOfflineHits() {
+      return offlineHits.get();
+    }
+
+    public long getMisses() {
+      return misses.get();
+    }
+
+    public long getStaleHits() {
+      return staleHits.get();
+    }
+
+    /**
+     * Expired caches revalidated by 304 Not Modified
+     */
+    public long getRevalidations() {
+      return revalidations.get();
+    }
+
+    public long getStores() {
+      return stores.get();
+    }
+
+    public long getBytesStored() {
+      return bytesStored.get();
+    }
+
+    public long getLookupCount() {
+      return lookupCount.get();
+    }
+
+    /**
+     * Ratio of lookups served from cache, including stale and revalidated responses
+     */
+    public double getHitRatio() {
+      long lookups = lookupCount.get();
+      return lookups > 0 ? (double) (hits.get() + offlineHits.get() + staleHits.get() + revalidations.get()) / lookups : 0;
+    }
+
+    public double getAverageLookupMillis() {
+      long lookups = lookupCount.get();
+      return lookups > 0 ? lookupNanos.get() / 1e6 / lookups : 0;
+    }
+
+    public Map<String, String> toMap() {
+      Map<String, String> map = new HashMap<>();
+      map.put("hits", String.valueOf(getHits()));
+      map.put("offlineHits", String.valueOf(getOfflineHits()));
+      map.put("misses", String.valueOf(getMisses()));
+      map.put("staleHits", String.valueOf(getStaleHits()));
+      map.put("revalidations", String.valueOf(getRevalidations()));
+      map.put("stores", String.valueOf(getStores()));
+      map.put("bytesStored", String.valueOf(getBytesStored()));
+      map.put("hitRatio", String.format(Locale.US, "%.3f", getHitRatio()));
+      map.put("avgLookupMs", String.format(Locale.US, "%.3f", getAverageLookupMillis()));
+
+      return map;
+    }
+
+    @Override
+    public String toString() {
+      return toMap().toString();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import com.activeandroid.Model;
+import com.activeandroid.annotation.Column;
+import com.activeandroid.annotation.Table;
+
+/**
+ * Tag of a cached response, see {@link com.magnet.max.android.rest.CacheOptions.Builder#tags(String...)}
+ */
+@Table(name = "CacheTagEntity")
+public class CacheTagEntity extends Model {
+  static final String UNIQUE_GROUP = "requestHashTag";
+
+  @Column(name="requestHash", index = true, uniqueGroups = {UNIQUE_GROUP}, onUniqueConflicts = {Column.ConflictAction.IGNORE})
+  public String requestHash;
+
+  @Column(name="tag", index = true, uniqueGroups = {UNIQUE_GROUP}, onUniqueConflicts = {Column.ConflictAction.IGNORE})
+  public String tag;
+
+  public String getRequestHash() {
+    return requestHash;
+  }
+
+  public String getTag() {
+    return tag;
+  }
+}
@@ -17,39 +17,176 @@ package com.magnet.max.android.rest.qos.internal;
 
 import android.util.Log;
 import com.magnet.max.android.util.StringUtil;
+import com.squareup.okhttp.Headers;
+import com.squareup.okhttp.HttpUrl;
 import com.squareup.okhttp.Request;
-import com.squareup.okhttp.internal.Util;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.internal.http.OkHeaders;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
 import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.Okio;
+import okio.Sink;
+import okio.Timeout;
 
 public class CacheUtils {
   private static final String TAG = CacheUtils.class.getSimpleName();
 
   public static final int MAX_CONTENT_LENGTH_TO_HASH = 4 * 1024;
 
+  public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  // Keyed by identity of the request, entries go away with the request
+  private static final Map<Request, String> requestHashes = Collections.synchronizedMap(new WeakHashMap<Request, String>());
+  private static final Map<Request, String> urlTemplates = Collections.synchronizedMap(new WeakHashMap<Request, String>());
+  private static final Map<Request, KeyConfig> keyConfigs = Collections.synchronizedMap(new WeakHashMap<Request, KeyConfig>());
+
+  /**
+   * Get the hash of method, url and body of the request. It's computed once per request instance.
+   * @param request
+   * @return
+   */
   public static String getRequestHash(Request request) {
-    StringBuilder sb = new StringBuilder();
+    String hash = requestHashes.get(request);
+    if(null == hash) {
+      hash = computeRequestHash(request);
+      requestHashes.put(request, hash);
+    }
+
+    return hash;
+  }
+
+  /**
+   * Remember the url template (e.g. "GET api/users/{userId}") of the Retrofit method which made the request
+   * @param request
+   * @param urlTemplate
+   */
+  public static void setUrlTemplate(Request request, String urlTemplate) {
+    urlTemplates.put(request, urlTemplate);
+  }
+
+  /**
+   * Set the query parameters to leave out of and the headers to add to the hash of the request.
+   * It has to be called before the hash is computed.
+   * @param request
+   * @param ignoredParams
+   * @param headers
+   */
+  public static void setCacheKey(Request request, String[] ignoredParams, String[] headers) {
+    keyConfigs.put(request, new KeyConfig(ignoredParams, headers));
+  }
+
+  /**
+   * New instance of the request with the same url template, cache key and hash
+   * @param request
+   * @return
+   */
+  public static Request copyOf(Request request) {
+    Request copy = request.newBuilder().build();
+    String template = urlTemplates.get(request);
+    if(null != template) {
+      urlTemplates.put(copy, template);
+    }
+    KeyConfig keyConfig = keyConfigs.get(request);
+    if(null != keyConfig) {
+      keyConfigs.put(copy, keyConfig);
+    }
+    requestHashes.put(copy, getRequestHash(request));
+    return copy;
+  }
+
+  /**
+   * Get the url template of the request, method and path if it's not made by a Retrofit method
+   * @param request
+   * @return
+   */
+  public static String getUrlTemplate(Request request) {
+    String template = urlTemplates.get(request);
+    return null != template ? template : request.method() + " " + request.httpUrl().encodedPath();
+  }
+
+  /**
+   * MD5 over the UTF-8 bytes of method, normalized url, allow-listed headers and body (if hashable),
+   * streamed without building the string.
+   * Bump {@link com.magnet.max.android.rest.SystemDataStore#CACHE_KEY_VERSION} when it changes.
+   */
+  static String computeRequestHash(Request request) {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+
+    KeyConfig keyConfig = keyConfigs.get(request);
+
     //Method and URL
-    sb.append(request.method()).append(request.urlString());
+    digest.update(request.method().getBytes(UTF_8));
+    digest.update(normalizeUrl(request, keyConfig).getBytes(UTF_8));
     //Headers
-    if(null != request.headers()) {
-
+    if(null != keyConfig) {
+      for(String name : keyConfig.headers) {
+        List<String> values = request.headers(name);
+        if(!values.isEmpty()) {
+          digest.update(("\n" + name + ":" + StringUtil.toString(values)).getBytes(UTF_8));
+        }
+      }
     }
     //Body
     //Don't include body when it's multipart
     if(toHashBody(request)) {
       try {
-        Buffer buffer = new Buffer();
-        Request copy = request.newBuilder().build();
-        copy.body().writeTo(buffer);
-        sb.append(buffer.readUtf8());
+        BufferedSink sink = Okio.buffer(new DigestSink(digest));
+        request.body().writeTo(sink);
+        sink.flush();
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
 
-    return Util.md5Hex(sb.toString());
+    return ByteString.of(digest.digest()).hex();
+  }
+
+  /**
+   * Values of the request headers listed in Vary of the response, in "name: value" lines
+   * @return null if the response doesn't vary on request headers
+   */
+  public static String getVaryHeaders(Request request, Response response) {
+    Headers varyHeaders = OkHeaders.varyHeaders(request.headers(), response.headers());
+    return varyHeaders.size() > 0 ? varyHeaders.toString() : null;
+  }
+
+  /**
+   * Parse headers in "name: value" lines
+   */
+  public static Headers parseHeaders(String lines) {
+    Headers.Builder builder = new Headers.Builder();
+    if(StringUtil.isNotEmpty(lines)) {
+      for(String line : lines.split("\n")) {
+        if(StringUtil.isNotEmpty(line)) {
+          builder.add(line);
+        }
+      }
+    }
+
+    return builder.build();
   }
 
   public static byte[] copyBody(Buffer buffer) {
@@ -73,6 +210,54 @@ public class CacheUtils {
     return null;
   }
 
+  /**
+   * Url with query parameters sorted by name and ignored parameters of the request removed
+   */
+  static String normalizeUrl(Request request) {
+    return normalizeUrl(request, keyConfigs.get(request));
+  }
+
+  /**
+   * Url with query parameters sorted by name (the order of values of the same name is kept) and
+   * ignored parameters removed. The url is returned as is if it's already normalized.
+   */
+  static String normalizeUrl(Request request, KeyConfig keyConfig) {
+    final HttpUrl url = request.httpUrl();
+    int querySize = url.querySize();
+    Set<String> ignoredParams = null != keyConfig ? keyConfig.ignoredParams : Collections.<String>emptySet();
+    if(querySize == 0 || (querySize == 1 && ignoredParams.isEmpty())) {
+      return request.urlString();
+    }
+
+    List<Integer> indexes = new ArrayList<>(querySize);
+    for(int i = 0; i < querySize; i++) {
+      if(!ignoredParams.contains(url.queryParameterName(i))) {
+        indexes.add(i);
+      }
+    }
+    //Stable sort
+    Collections.sort(indexes, new Comparator<Integer>() {
+      @Override public int compare(Integer lhs, Integer rhs) {
+        return url.queryParameterName(lhs).compareTo(url.queryParameterName(rhs));
+      }
+    });
+
+    boolean normalized = indexes.size() == querySize;
+    for(int i = 0; normalized && i < querySize; i++) {
+      normalized = indexes.get(i) == i;
+    }
+    if(normalized) {
+      return request.urlString();
+    }
+
+    HttpUrl.Builder builder = url.newBuilder().query(null);
+    for(Integer i : indexes) {
+      builder.addQueryParameter(url.queryParameterName(i), url.queryParameterValue(i));
+    }
+
+    return builder.build().toString();
+  }
+
   private static boolean toHashBody(Request request) {
     if(null == request.body()) {
       return false;
@@ -101,4 +286,58 @@ public class CacheUtils {
 
     return true;
   }
+
+  /**
+   * Cache key configuration of a request
+   */
+  static class KeyConfig {
+    private final Set<String> ignoredParams;
+    // Lower cased and sorted so the hash doesn't depend on the order they are declared
+    private final Set<String> headers = new TreeSet<>();
+
+    public KeyConfig(String[] ignoredParams, String[] headers) {
+      this.ignoredParams = null != ignoredParams ? new HashSet<>(Arrays.asList(ignoredParams))
+          : Collections.<String>emptySet();
+      if(null != headers) {
+        for(String name : headers) {
+          this.headers.add(name.trim().toLowerCase(Locale.US));
+        }
+      }
+    }
+  }
+
+  /**
+   * Sink feeding everything written to a MessageDigest
+   */
+  private static class DigestSink implements Sink {
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    private final MessageDigest digest;
+    private final byte[] chunk = new byte[CHUNK_SIZE];
+
+    public DigestSink(MessageDigest digest) {
+      this.digest = digest;
+    }
+
+    @Override public void write(Buffer source, long byteCount) throws IOException {
+      while (byteCount > 0) {
+        int read = source.read(chunk, 0, (int) Math.min(byteCount, chunk.length));
+        if(read == -1) {
+          throw new EOFException();
+        }
+        digest.update(chunk, 0, read);
+        byteCount -= read;
+      }
+    }
+
+    @Override public void flush() throws IOException {
+    }
+
+    @Override public Timeout timeout() {
+      return Timeout.NONE;
+    }
+
+    @Override public void close() throws IOException {
+    }
+  }
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import android.util.Log;
+import com.squareup.okhttp.internal.Util;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Source;
+
+/**
+ * Tees the response body into the cache while the caller consumes it. Small bodies are kept in memory,
+ * larger ones spill to the {@link CachedBodyStore}. The cache is only written when the body is fully read.
+ */
+public class CacheWritingSource extends ForwardingSource {
+  private static final String TAG = CacheWritingSource.class.getSimpleName();
+  // Time allowed to read the rest of the body when it's closed before the end
+  private static final int DISCARD_TIMEOUT_MILLIS = 100;
+
+  public interface Listener {
+    CachedBodyStore.Writer newFileWriter() throws IOException;
+
+    void onComplete(byte[] body, File bodyFile);
+
+    void onAbort();
+  }
+
+  private final long maxInlineSize;
+  private final Listener listener;
+
+  private final Buffer inlineBody = new Buffer();
+  private CachedBodyStore.Writer fileWriter;
+  private boolean isCaching = true;
+
+  public CacheWritingSource(Source delegate, long maxInlineSize, Listener listener) {
+    super(delegate);
+    this.maxInlineSize = maxInlineSize;
+    this.listener = listener;
+  }
+
+  @Override public long read(Buffer sink, long byteCount) throws IOException {
+    long read;
+    try {
+      read = super.read(sink, byteCount);
+    } catch (IOException e) {
+      abort();
+      throw e;
+    }
+
+    if(!isCaching) {
+      return read;
+    }
+
+    if(read == -1) {
+      complete();
+      return read;
+    }
+
+    try {
+      if(null == fileWriter && inlineBody.size() + read > maxInlineSize) {
+        fileWriter = listener.newFileWriter();
+        fileWriter.write(inlineBody, 0, inlineBody.size());
+        inlineBody.clear();
+      }
+
+      if(null != fileWriter) {
+        fileWriter.write(sink, sink.size() - read, read);
+      } else {
+        sink.copyTo(inlineBody, sink.size() - read, read);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to write body to cache", e);
+      abort();
+    }
+
+    return read;
+  }
+
+  @Override public void close() throws IOException {
+    // Converters might stop before the end of the body, read the rest so it can be cached
+    if(isCaching && !Util.discard(this, DISCARD_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+      abort();
+    }
+
+    super.close();
+  }
+
+  private void complete() {
+    isCaching = false;
+    try {
+      if(null != fileWriter) {
+        listener.onComplete(null, fileWriter.commit());
+      } else {
+        listener.onComplete(inlineBody.readByteArray(), null);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to commit body to cache", e);
+      listener.onAbort();
+    }
+  }
+
+  private void abort() {
+    if(isCaching) {
+      isCaching = false;
+      if(null != fileWriter) {
+        fileWriter.abort();
+      }
+      inlineBody.clear();
+      listener.onAbort();
+    }
+  }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import android.util.Log;
+import com.squareup.okhttp.internal.Util;
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.ByteString;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * Content-addressed file store for cached bodies too large to be kept in a SQLite row
+ */
+public class CachedBodyStore {
+  private static final String TAG = CachedBodyStore.class.getSimpleName();
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private final File directory;
+
+  public CachedBodyStore(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Create a writer to stream a body into the store, the file is named after the content when it's committed
+   * @return
+   * @throws IOException
+   */
+  public Writer newWriter() throws IOException {
+    return newWriter(false);
+  }
+
+  /**
+   * Create a writer to stream a body into the store, gzipped if asked
+   * @param gzip
+   * @return
+   * @throws IOException
+   */
+  public Writer newWriter(boolean gzip) throws IOException {
+    ensureDirectory();
+    return new Writer(File.createTempFile("body", TEMP_FILE_SUFFIX, directory), gzip);
+  }
+
+  public File getDirectory() {
+    return directory;
+  }
+
+  private void ensureDirectory() throws IOException {
+    if(!directory.exists() && !directory.mkdirs()) {
+      Log.e(TAG, "Failed to create directory " + directory);
+      throw new IOException("Failed to create directory " + directory);
+    }
+  }
+
+  public class Writer {
+    private final File tempFile;
+    private final BufferedSink sink;
+    private final MessageDigest digest;
+
+    private Writer(File tempFile, boolean gzip) throws IOException {
+      this.tempFile = tempFile;
+      this.sink = Okio.buffer(gzip ? new GzipSink(Okio.sink(tempFile)) : Okio.sink(tempFile));
+      try {
+        this.digest = MessageDigest.getInstance("MD5");
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+      if(gzip) {
+        // Same content stored raw and gzipped shouldn't share a file
+        digest.update(CacheBodyCodec.GZIP.getBytes(CacheUtils.UTF_8));
+      }
+    }
+
+    public void write(byte[] bytes) throws IOException {
+      digest.update(bytes);
+      sink.write(bytes);
+    }
+
+    /**
+     * Write bytes of the buffer without consuming them
+     */
+    public void write(Buffer source, long offset, long byteCount) throws IOException {
+      Buffer chunk = new Buffer();
+      source.copyTo(chunk, offset, byteCount);
+      write(chunk.readByteArray());
+    }
+
+    /**
+     * Finish writing and move the body to its content-addressed file
+     * @return the file that holds the body
+     * @throws IOException
+     */
+    public File commit() throws IOException {
+      sink.close();
+
+      File file = new File(directory, ByteString.of(digest.digest()).hex());
+      if(file.exists() && file.length() == tempFile.length()) {
+        tempFile.delete();
+        // Reused by a new entry, so it isn't swept as an orphan before the entry is saved
+        if(!file.setLastModified(System.currentTimeMillis())) {
+          Log.w(TAG, "Failed to touch " + file);
+        }
+        return file;
+      }
+
+      if(!tempFile.renameTo(file)) {
+        tempFile.delete();
+        throw new IOException("Failed to rename " + tempFile + " to " + file);
+      }
+
+      return file;
+    }
+
+    public void abort() {
+      Util.closeQuietly(sink);
+      if(!tempFile.delete()) {
+        Log.w(TAG, "Failed to delete " + tempFile);
+      }
+    }
+  }
+}
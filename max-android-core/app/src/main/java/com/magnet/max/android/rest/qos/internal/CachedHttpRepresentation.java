@@ -16,16 +16,74 @@
 package com.magnet.max.android.rest.qos.internal;
 
 import com.squareup.okhttp.Headers;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import okio.BufferedSink;
+import okio.BufferedSource;
 
 class CachedHttpRepresentation {
+  private static final int NULL_LENGTH = -1;
+
   protected String[] headers;
   protected byte[] body;
+  /**
+   * Path of the file holding the body when it's too large to be stored inline
+   */
+  protected String bodyFile;
+  /**
+   * Compression of the stored body, see {@link CacheBodyCodec}, null if it's stored raw
+   */
+  protected String codec;
+
+  /**
+   * Whether it's loaded from the legacy JSON format and should be rewritten in binary format
+   */
+  protected transient boolean isLegacyFormat;
 
   public CachedHttpRepresentation() {
   }
 
+  public boolean isLegacyFormat() {
+    return isLegacyFormat;
+  }
+
+  public String getBodyFile() {
+    return bodyFile;
+  }
+
+  public String getCodec() {
+    return codec;
+  }
+
+  /**
+   * Approximate storage size in bytes, including the body file
+   */
+  public long getSize() {
+    long size = 0;
+    if(null != headers) {
+      for(String s : headers) {
+        size += null != s ? s.length() : 0;
+      }
+    }
+    if(null != body) {
+      size += body.length;
+    }
+    if(null != bodyFile) {
+      size += new File(bodyFile).length();
+    }
+
+    return size;
+  }
+
+  /**
+   * Whether the body (inline or in file) is still available
+   */
+  protected boolean isBodyAvailable() {
+    return null == bodyFile || new File(bodyFile).exists();
+  }
+
   protected void parseHeaders(Headers header) {
     if(null != header) {
       List<String> headerList = new ArrayList<>();
@@ -39,4 +97,86 @@ class CachedHttpRepresentation {
       headers = headerList.toArray(new String[headerList.size()]);
     }
   }
+
+  /**
+   * Write in binary format : fields of subclass, length-prefixed headers and length-prefixed stored body
+   * @param sink
+   * @throws IOException
+   */
+  protected void writeTo(BufferedSink sink) throws IOException {
+    writeFields(sink);
+
+    if(null != headers) {
+      sink.writeInt(headers.length);
+      for(String s : headers) {
+        writeString(sink, s);
+      }
+    } else {
+      sink.writeInt(NULL_LENGTH);
+    }
+
+    writeBytes(sink, body);
+    // Optional trailing fields
+    writeString(sink, bodyFile);
+    writeString(sink, codec);
+  }
+
+  protected void readFrom(BufferedSource source) throws IOException {
+    readFields(source);
+
+    int headerCount = source.readInt();
+    if(headerCount != NULL_LENGTH) {
+      headers = new String[headerCount];
+      for(int i = 0; i < headerCount; i++) {
+        headers[i] = readString(source);
+      }
+    }
+
+    body = readBytes(source);
+    if(!source.exhausted()) {
+      bodyFile = readString(source);
+    }
+    if(!source.exhausted()) {
+      codec = readString(source);
+    }
+  }
+
+  /**
+   * Write fields specific to the subclass
+   */
+  protected void writeFields(BufferedSink sink) throws IOException {
+  }
+
+  /**
+   * Read fields specific to the subclass, in the same order as {@link #writeFields(BufferedSink)}
+   */
+  protected void readFields(BufferedSource source) throws IOException {
+  }
+
+  protected static void writeString(BufferedSink sink, String s) throws IOException {
+    if(null != s) {
+      writeBytes(sink, s.getBytes(CacheUtils.UTF_8));
+    } else {
+      sink.writeInt(NULL_LENGTH);
+    }
+  }
+
+  protected static String readString(BufferedSource source) throws IOException {
+    int length = source.readInt();
+    return length != NULL_LENGTH ? source.readUtf8(length) : null;
+  }
+
+  protected static void writeBytes(BufferedSink sink, byte[] bytes) throws IOException {
+    if(null != bytes) {
+      sink.writeInt(bytes.length);
+      sink.write(bytes);
+    } else {
+      sink.writeInt(NULL_LENGTH);
+    }
+  }
+
+  protected static byte[] readBytes(BufferedSource source) throws IOException {
+    int length = source.readInt();
+    return length != NULL_LENGTH ? source.readByteArray(length) : null;
+  }
 }
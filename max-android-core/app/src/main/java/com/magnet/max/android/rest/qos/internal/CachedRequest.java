@@ -21,6 +21,8 @@ import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import java.io.IOException;
 import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
 
 public class CachedRequest extends CachedHttpRepresentation {
   private String url;
@@ -39,7 +41,7 @@ public class CachedRequest extends CachedHttpRepresentation {
       try {
         Buffer buffer = new Buffer();
         request.body().writeTo(buffer);
-        body = CacheUtils.copyBody(buffer);
+        body = buffer.readByteArray();
       } catch (IOException e) {
         e.printStackTrace();
       }
@@ -56,6 +58,16 @@ public class CachedRequest extends CachedHttpRepresentation {
         .build();
   }
 
+  @Override protected void writeFields(BufferedSink sink) throws IOException {
+    writeString(sink, url);
+    writeString(sink, method);
+  }
+
+  @Override protected void readFields(BufferedSource source) throws IOException {
+    url = readString(source);
+    method = readString(source);
+  }
+
   public String getUrl() {
     return url;
   }
@@ -15,22 +15,17 @@
  */
 package com.magnet.max.android.rest.qos.internal;
 
-import java.net.CacheRequest;
-
 public class CachedRequestSerializer extends AbstractCachedHttpRepresentationSerilizer {
 
   @Override public Class<?> getDeserializedType() {
-    return CacheRequest.class;
+    return CachedRequest.class;
   }
 
-  @Override public Class<?> getSerializedType() {
-    return String.class;
+  @Override public CachedRequest deserialize(Object data) {
+    return (CachedRequest) super.deserialize(data);
   }
 
-  @Override public CacheRequest deserialize(Object data) {
-    if(null == data) {
-      return null;
-    }
-    return (CacheRequest) getGson().fromJson((String) data, getDeserializedType());
+  @Override protected CachedHttpRepresentation newRepresentation() {
+    return new CachedRequest();
   }
 }
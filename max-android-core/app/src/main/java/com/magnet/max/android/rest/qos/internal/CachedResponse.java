@@ -15,16 +15,24 @@
  */
 package com.magnet.max.android.rest.qos.internal;
 
+import android.util.Log;
 import com.squareup.okhttp.Headers;
 import com.squareup.okhttp.MediaType;
 import com.squareup.okhttp.Protocol;
 import com.squareup.okhttp.Request;
 import com.squareup.okhttp.Response;
 import com.squareup.okhttp.ResponseBody;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.Okio;
 
 public class CachedResponse extends CachedHttpRepresentation {
+  private static final String TAG = CachedResponse.class.getSimpleName();
+
   private int code;
   private String protocol;
   private String message;
@@ -33,23 +41,38 @@ public class CachedResponse extends CachedHttpRepresentation {
   }
 
   public CachedResponse(Response response) {
-    this.code = response.code();
-    this.protocol = response.protocol().toString();
-    this.message = response.message();
-
-    parseHeaders(response.headers());
+    this(response, null, null);
 
     if(null != response.body()) {
       try {
         Buffer buffer = new Buffer();
         response.body().source().readAll(buffer);
-        body = CacheUtils.copyBody(buffer);
+        body = buffer.readByteArray();
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
   }
 
+  public CachedResponse(Response response, byte[] body, String bodyFile) {
+    this(response, body, bodyFile, null);
+  }
+
+  /**
+   * Create with the body already read, either inline or in a body file, and compressed with the codec
+   */
+  public CachedResponse(Response response, byte[] body, String bodyFile, String codec) {
+    this.code = response.code();
+    this.protocol = response.protocol().toString();
+    this.message = response.message();
+
+    parseHeaders(response.headers());
+
+    this.body = body;
+    this.bodyFile = bodyFile;
+    this.codec = codec;
+  }
+
   public Response toResponse(Request request) {
     Headers responseHeaders = Headers.of(headers);
     String contentType = responseHeaders.get("Content-Type");
@@ -57,10 +80,48 @@ public class CachedResponse extends CachedHttpRepresentation {
         .code(code).protocol(getProtocolEnum()).message(message)
         .headers(responseHeaders)
         .request(request).build();
-    return cachedResponse.newBuilder().body(ResponseBody.create(MediaType.parse(contentType), body))
+    return cachedResponse.newBuilder().body(newResponseBody(MediaType.parse(contentType)))
         .cacheResponse(cachedResponse).build();
   }
 
+  /**
+   * Create a body for the cached content, large body is streamed from the body file.
+   * Compressed body is decompressed while it's read.
+   * @param contentType
+   * @return
+   */
+  public ResponseBody newResponseBody(MediaType contentType) {
+    if(null != bodyFile) {
+      File file = new File(bodyFile);
+      try {
+        if(null != codec) {
+          return ResponseBody.create(contentType, -1, Okio.buffer(CacheBodyCodec.decode(codec, Okio.source(file))));
+        }
+        return ResponseBody.create(contentType, file.length(), Okio.buffer(Okio.source(file)));
+      } catch (FileNotFoundException e) {
+        Log.e(TAG, "Cached body file " + bodyFile + " is missing");
+      }
+    }
+
+    if(null != codec && null != body) {
+      return ResponseBody.create(contentType, -1, Okio.buffer(CacheBodyCodec.decode(codec, new Buffer().write(body))));
+    }
+
+    return ResponseBody.create(contentType, null != body ? body : new byte[0]);
+  }
+
+  @Override protected void writeFields(BufferedSink sink) throws IOException {
+    sink.writeInt(code);
+    writeString(sink, protocol);
+    writeString(sink, message);
+  }
+
+  @Override protected void readFields(BufferedSource source) throws IOException {
+    code = source.readInt();
+    protocol = readString(source);
+    message = readString(source);
+  }
+
   public int getCode() {
     return code;
   }
@@ -21,14 +21,11 @@ public class CachedResponseSerializer extends AbstractCachedHttpRepresentationSe
     return CachedResponse.class;
   }
 
-  @Override public Class<?> getSerializedType() {
-    return String.class;
+  @Override public CachedResponse deserialize(Object data) {
+    return (CachedResponse) super.deserialize(data);
   }
 
-  @Override public CachedResponse deserialize(Object data) {
-    if(null == data) {
-      return null;
-    }
-    return (CachedResponse) getGson().fromJson((String) data, getDeserializedType());
+  @Override protected CachedHttpRepresentation newRepresentation() {
+    return new CachedResponse();
   }
 }
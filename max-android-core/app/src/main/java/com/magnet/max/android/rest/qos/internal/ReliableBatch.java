@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.magnet.max.android.rest.RestConstants;
+import com.magnet.max.android.util.AuthUtil;
+import com.squareup.okhttp.HttpUrl;
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.RequestBody;
+import com.squareup.okhttp.Response;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import okio.Buffer;
+
+/**
+ * Queued reliable calls packed into one JSON envelope POSTed to the batch endpoint :
+ * <pre>
+ * {"requests":[{"id":"idempotency key","method":"POST","url":"http://...","headers":{"Content-Type":["application/json"]},"body":"..."}]}
+ * </pre>
+ * Headers are lists as a header can have more than one value. The server applies the calls in order and answers with
+ * the status of each call :
+ * <pre>
+ * {"responses":[{"id":"idempotency key","status":200}]}
+ * </pre>
+ */
+public class ReliableBatch {
+  public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+  public static final int MAX_BODY_SIZE = 64 * 1024;
+  private static final int MIN_STATUS = 100;
+  private static final int MAX_STATUS = 599;
+
+  private static final Gson GSON = new Gson();
+
+  private final HttpUrl endpoint;
+  private final List<Item> items = new ArrayList<>();
+
+  public ReliableBatch(HttpUrl endpoint) {
+    this.endpoint = endpoint;
+  }
+
+  /**
+   * Calls without body or with a small text body can be batched
+   */
+  public static boolean isBatchable(Request request) {
+    RequestBody body = request.body();
+    if(null == body) {
+      return true;
+    }
+
+    try {
+      long length = body.contentLength();
+      if(length == 0) {
+        return true;
+      } else if(length > MAX_BODY_SIZE) {
+        return false;
+      }
+    } catch (IOException e) {
+      return false;
+    }
+
+    MediaType mediaType = body.contentType();
+    if(null == mediaType) {
+      return false;
+    }
+    String subtype = mediaType.subtype().toLowerCase();
+    return "text".equalsIgnoreCase(mediaType.type()) || subtype.contains("json") || subtype.contains("xml")
+        || subtype.contains("x-www-form-urlencoded");
+  }
+
+  /**
+   * Add the call, identified by its idempotency key
+   * @param id
+   * @param request
+   */
+  public void add(String id, Request request) throws IOException {
+    Item item = new Item();
+    item.id = id;
+    item.method = request.method();
+    item.url = request.urlString();
+    item.headers = new LinkedHashMap<>();
+    for(String name : request.headers().names()) {
+      // The batch carries the auth token, the id is the idempotency key, content type is taken from the body
+      if(!AuthUtil.AUTHORIZATION_HEADER.equalsIgnoreCase(name) && !"Content-Length".equalsIgnoreCase(name)
+          && !"Content-Type".equalsIgnoreCase(name) && !RestConstants.IDEMPOTENCY_KEY_HEADER.equalsIgnoreCase(name)) {
+        item.headers.put(name, request.headers(name));
+      }
+    }
+    if(null != request.body()) {
+      if(null != request.body().contentType()) {
+        item.headers.put("Content-Type", Collections.singletonList(request.body().contentType().toString()));
+      }
+      Buffer buffer = new Buffer();
+      request.body().writeTo(buffer);
+      item.body = buffer.readUtf8();
+    }
+
+    items.add(item);
+  }
+
+  public int size() {
+    return items.size();
+  }
+
+  public List<String> getIds() {
+    List<String> ids = new ArrayList<>(items.size());
+    for(Item item : items) {
+      ids.add(item.id);
+    }
+
+    return ids;
+  }
+
+  public Request toRequest() {
+    Envelope envelope = new Envelope();
+    envelope.requests = items;
+    return new Request.Builder().url(endpoint)
+        .post(RequestBody.create(JSON, GSON.toJson(envelope)))
+        .build();
+  }
+
+  /**
+   * Status of each call by id, calls missing in the response or without a valid status aren't in the map
+   * @param response
+   * @return
+   * @throws IOException if the response isn't a valid result envelope
+   */
+  public static Map<String, Integer> parseResults(Response response) throws IOException {
+    Results results;
+    try {
+      results = GSON.fromJson(response.body().charStream(), Results.class);
+    } catch (JsonParseException e) {
+      throw new IOException("Invalid batch response", e);
+    } finally {
+      response.body().close();
+    }
+
+    Map<String, Integer> statuses = new HashMap<>();
+    if(null != results && null != results.responses) {
+      for(Result result : results.responses) {
+        if(null != result && null != result.id && null != result.status
+            && result.status >= MIN_STATUS && result.status <= MAX_STATUS) {
+          statuses.put(result.id, result.status);
+        }
+      }
+    }
+
+    return statuses;
+  }
+
+  private static class Envelope {
+    private List<Item> requests;
+  }
+
+  private static class Item {
+    private String id;
+    private String method;
+    private String url;
+    private Map<String, List<String>> headers;
+    private String body;
+  }
+
+  private static class Results {
+    private List<Result> responses;
+  }
+
+  private static class Result {
+    private String id;
+    private Integer status;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import android.util.Log;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capped exponential backoff with jitter between attempts of a reliable call,
+ * and a timer to replay the calls when the earliest one becomes eligible
+ */
+public class ReliableCallScheduler {
+  private static final String TAG = ReliableCallScheduler.class.getSimpleName();
+
+  public static final long DEFAULT_BASE_DELAY = 5 * 1000; //5 seconds
+  public static final long DEFAULT_MAX_DELAY = 30 * 60 * 1000; //30 minutes
+  private static final int MAX_EXPONENT = 20;
+
+  private final long baseDelay;
+  private final long maxDelay;
+  private final Random random;
+
+  private ScheduledExecutorService executor;
+  private ScheduledFuture<?> pendingReplay;
+  private long pendingReplayAt;
+  private long replaySequence;
+
+  public ReliableCallScheduler() {
+    this(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, new Random());
+  }
+
+  public ReliableCallScheduler(long baseDelay, long maxDelay, Random random) {
+    if(baseDelay <= 0 || maxDelay < baseDelay) {
+      throw new IllegalArgumentException("Invalid backoff delays " + baseDelay + ", " + maxDelay);
+    }
+    this.baseDelay = baseDelay;
+    this.maxDelay = maxDelay;
+    this.random = random;
+  }
+
+  /**
+   * Delay before the next attempt after the given number of failed attempts. The cap doubles with every attempt
+   * up to maxDelay, the delay is picked randomly between half the cap and the cap so replays of calls
+   * which failed together are spread out.
+   * @param attempts
+   * @return delay in milliseconds, 0 if there is no failed attempt
+   */
+  public long getBackoffDelay(int attempts) {
+    if(attempts <= 0) {
+      return 0;
+    }
+
+    long cap = Math.min(maxDelay, baseDelay << Math.min(attempts - 1, MAX_EXPONENT));
+    long half = cap / 2;
+    return half + (long) (random.nextDouble() * (cap - half));
+  }
+
+  public long getNextAttemptAt(int attempts, long now) {
+    return now + getBackoffDelay(attempts);
+  }
+
+  public static boolean isDue(ReliableRequestEntity entity, long now) {
+    return null == entity.getNextAttemptAt() || entity.getNextAttemptAt() <= now;
+  }
+
+  /**
+   * Run the replay at the given time, only the earliest pending replay is kept
+   * @param time
+   * @param replay
+   */
+  public synchronized void scheduleReplay(long time, final Runnable replay) {
+    if(null != pendingReplay && !pendingReplay.isDone()) {
+      if(pendingReplayAt <= time) {
+        return;
+      }
+      pendingReplay.cancel(false);
+    }
+
+    if(null == executor) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ReliableCallScheduler");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    long delay = Math.max(0, time - System.currentTimeMillis());
+    Log.d(TAG, "Replaying reliable calls in " + delay + " ms");
+    final long sequence = ++replaySequence;
+    pendingReplayAt = time;
+    pendingReplay = executor.schedule(new Runnable() {
+      @Override public void run() {
+        // Let the replay schedule the next one
+        synchronized (ReliableCallScheduler.this) {
+          if(sequence == replaySequence) {
+            pendingReplay = null;
+          }
+        }
+        replay.run();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+}
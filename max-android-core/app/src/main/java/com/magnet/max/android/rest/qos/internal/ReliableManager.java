@@ -16,84 +16,225 @@
 package com.magnet.max.android.rest.qos.internal;
 
 import android.util.Log;
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.query.Delete;
 import com.activeandroid.query.Select;
 import com.magnet.max.android.rest.qos.Condition;
 import com.magnet.max.android.rest.qos.conditions.WifiCondition;
-import com.magnet.max.android.rest.CallOptions;
 import com.magnet.max.android.rest.ReliableCallOptions;
 import com.magnet.max.android.util.StringUtil;
 import com.squareup.okhttp.Request;
+import okio.ByteString;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.UUID;
 
 public class ReliableManager {
   private static final String TAG = ReliableManager.class.getSimpleName();
 
-  public void saveRequest(Request request, ReliableCallOptions options, String reason) {
+  private final ReliableCallScheduler scheduler = new ReliableCallScheduler();
+
+  /**
+   * Persist the request, collapsed with the queued requests per the collapse policy of the options
+   * @param request
+   * @param options
+   * @param reason
+   * @param superseded to add the queued requests replaced by this one
+   * @return the saved request, the queued one if it's deduplicated
+   */
+  public ReliableRequestEntity saveRequest(Request request, ReliableCallOptions options, String reason,
+      List<ReliableRequestEntity> superseded) {
     String requestHash = CacheUtils.getRequestHash(request);
-    ReliableRequestEntity operation = null; //findRequest(requestHash, request, options);
+    String collapseKey = getCollapseKey(request, requestHash, options.getCollapsePolicy());
     long currentTimestamp = System.currentTimeMillis();
+    ReliableRequestEntity operation = null;
+    ActiveAndroid.beginTransaction();
+    try {
+      if(null != collapseKey) {
+        List<ReliableRequestEntity> queued = new Select()
+            .from(ReliableRequestEntity.class)
+            .where("collapseKey = ?", collapseKey)
+            .orderBy("createdAt ASC")
+            .execute();
+        if(ReliableCallOptions.CollapsePolicy.DEDUPE == options.getCollapsePolicy()) {
+          // Keep the first one so it's replayed in its original order
+          operation = !queued.isEmpty() ? queued.get(0) : null;
+        } else if(!queued.isEmpty()) {
+          superseded.addAll(queued);
+          new Delete().from(ReliableRequestEntity.class)
+              .where("collapseKey = ?", collapseKey)
+              .execute();
+          Log.d(TAG, "Replacing " + queued.size() + " queued request(s) with " + request);
+        }
+      }
+
+      if(null == operation) {
+        operation = new ReliableRequestEntity();
+        operation.createdAt = currentTimestamp;
+        operation.url = request.urlString();
+        operation.httpMethod = request.method();
+        operation.requestHash = requestHash;
+        operation.collapseKey = collapseKey;
+        operation.collapsePolicy = options.getCollapsePolicy().name();
+        operation.request = new CachedRequest(request);
+        operation.idempotencyKey = UUID.randomUUID().toString();
+        operation.options = options;
+        operation.wifiPreq = hasPrerequisite(options.getConditions(), WifiCondition.class);
+        operation.priority = options.getPriority();
+
+        Log.d(TAG, "Saving reliable request " + request + " with idempotency key " + operation.idempotencyKey);
+      } else {
+        Log.d(TAG, "Reliable request " + request + " is already queued");
+        operation.priority = Math.max(operation.priority, options.getPriority());
+        if(null == operation.idempotencyKey) {
+          operation.idempotencyKey = UUID.randomUUID().toString();
+        }
+      }
+      operation.updatedAt = currentTimestamp;
+      long newExpiredTime = currentTimestamp + options.getExpiresIn() * 1000;
+      if(null == operation.getExpiredAt() || newExpiredTime > operation.getExpiredAt()) {
+        operation.expiredAt = newExpiredTime;
+      }
+      if(StringUtil.isNotEmpty(reason)) {
+        operation.lastFailureReason = reason;
+      }
+      operation.lastFailureTime = currentTimestamp;
+      operation.save();
+      ActiveAndroid.setTransactionSuccessful();
+    } finally {
+      ActiveAndroid.endTransaction();
+    }
+
+    return operation;
+  }
+
+  /**
+   * Remove the persisted request, identical queued requests are left alone
+   * @param requestId
+   */
+  public void removeRequest(long requestId) {
+    new Delete().from(ReliableRequestEntity.class)
+        .where("Id = ?", requestId)
+        .execute();
+  }
+
+  /**
+   * Record a failed attempt of the request and back off its next attempt, identical queued requests are left alone
+   * @param requestId id of the persisted request
+   * @param reason
+   * @return time of the next attempt, null if the request isn't saved
+   */
+  public Long recordFailedAttempt(long requestId, String reason) {
+    ReliableRequestEntity operation = findRequest(requestId);
     if(null == operation) {
-      operation = new ReliableRequestEntity();
-      operation.createdAt = currentTimestamp;
-      operation.url = request.urlString();
-      operation.httpMethod = request.method();
-      operation.requestHash = requestHash;
-      operation.request = new CachedRequest(request);
-      operation.options = options;
-      operation.wifiPreq = hasPrerequisite(options.getConditions(), WifiCondition.class);
-
-      Log.d(TAG, "Saving reliable request " + request);
-    } else {
-      //Update body
-      Log.d(TAG, "Updating reliable request " + request);
-      operation.retries = operation.retries + 1;
+      return null;
     }
+
+    long currentTimestamp = System.currentTimeMillis();
+    operation.retries = operation.retries + 1;
+    operation.nextAttemptAt = scheduler.getNextAttemptAt(operation.retries, currentTimestamp);
+    operation.lastFailureTime = currentTimestamp;
     operation.updatedAt = currentTimestamp;
-    long newExpiredTime = currentTimestamp + options.getExpiresIn() * 1000;
-    if(null == operation.getExpiredAt() || newExpiredTime > operation.getExpiredAt()) {
-      operation.expiredAt = newExpiredTime;
-    }
     if(StringUtil.isNotEmpty(reason)) {
       operation.lastFailureReason = reason;
     }
-    operation.lastFailureTime = currentTimestamp;
     operation.save();
-  }
+    Log.d(TAG, "Attempt " + operation.retries + " of reliable request " + operation.getUrl() + " failed, next attempt in "
+        + (operation.nextAttemptAt - currentTimestamp) + " ms");
 
-  public void removeRequest(Request request) {
-    String requestHash = CacheUtils.getRequestHash(request);
-    ReliableRequestEntity operation = findRequest(requestHash, null, null);
-    if(null != operation) {
-      operation.delete();
-    }
+    return operation.nextAttemptAt;
   }
 
+  /**
+   * All unexpired requests, oldest first
+   */
   public List<ReliableRequestEntity> getAllCachedRequestEntities() {
-    List<ReliableRequestEntity> operations = new Select()
-        .from(ReliableRequestEntity.class)
-        .orderBy("updatedAt DESC")
-        .execute();
-
-    List<Integer> expiredIndexes = new ArrayList<>();
     long currentTimestamp = System.currentTimeMillis();
-    for(int i = 0; i < operations.size(); i++) {
-      if(operations.get(i).expiredAt < currentTimestamp) {
-        operations.get(i).delete();
-        expiredIndexes.add(i);
+    List<ReliableRequestEntity> operations;
+    ActiveAndroid.beginTransaction();
+    try {
+      new Delete().from(ReliableRequestEntity.class)
+          .where("expiredAt < ?", currentTimestamp)
+          .execute();
+      operations = new Select()
+          .from(ReliableRequestEntity.class)
+          .orderBy("createdAt ASC")
+          .execute();
+      ActiveAndroid.setTransactionSuccessful();
+    } finally {
+      ActiveAndroid.endTransaction();
+    }
+
+    for(ReliableRequestEntity operation : operations) {
+      restoreOptions(operation);
+      if(null == operation.getIdempotencyKey()) {
+        // Saved before idempotency keys were introduced
+        operation.idempotencyKey = UUID.randomUUID().toString();
+        operation.save();
       }
     }
 
     return operations;
   }
 
-  public void clearPendingCalls() {
-    List<ReliableRequestEntity> operations = new Select()
+  /**
+   * Time of the earliest attempt of requests which are backing off, null if there is none
+   */
+  public Long getNextAttemptAt() {
+    ReliableRequestEntity operation = new Select()
         .from(ReliableRequestEntity.class)
-        .execute();
-    for(int i = 0; i < operations.size(); i++) {
-      operations.get(i).delete();
+        .where("nextAttemptAt > ?", System.currentTimeMillis())
+        .orderBy("nextAttemptAt ASC")
+        .executeSingle();
+
+    return null != operation ? operation.getNextAttemptAt() : null;
+  }
+
+  public ReliableCallScheduler getScheduler() {
+    return scheduler;
+  }
+
+  /**
+   * ReliableCallOptions isn't persisted, rebuild it from the remaining time to live, the wifi prerequisite, priority
+   * and collapse policy
+   */
+  private static void restoreOptions(ReliableRequestEntity operation) {
+    if(null != operation.options) {
+      return;
+    }
+
+    long expiresIn = null != operation.getExpiredAt() ? (operation.getExpiredAt() - System.currentTimeMillis()) / 1000 : 0;
+    ReliableCallOptions.Builder builder = new ReliableCallOptions.Builder().expiresIn((int) Math.max(1, expiresIn))
+        .priority(operation.getPriority());
+    if(operation.isWifiPreq()) {
+      builder.conditions(new WifiCondition());
+    }
+    if(null != operation.getCollapsePolicy()) {
+      try {
+        builder.collapsePolicy(ReliableCallOptions.CollapsePolicy.valueOf(operation.getCollapsePolicy()));
+      } catch (IllegalArgumentException e) {
+        Log.w(TAG, "Unknown collapse policy " + operation.getCollapsePolicy() + " of reliable request " + operation.getUrl());
+      }
+    }
+    operation.options = builder.build();
+  }
+
+  public void clearPendingCalls() {
+    new Delete().from(ReliableRequestEntity.class).execute();
+  }
+
+  /**
+   * The request hash for DEDUPE, hash of method and normalized url for LAST_WRITE_WINS
+   */
+  private static String getCollapseKey(Request request, String requestHash, ReliableCallOptions.CollapsePolicy policy) {
+    switch (policy) {
+      case DEDUPE:
+        return requestHash;
+      case LAST_WRITE_WINS:
+        return ByteString.encodeUtf8(request.method() + " " + CacheUtils.normalizeUrl(request)).md5().hex();
+      default:
+        return null;
     }
   }
 
@@ -109,24 +250,10 @@ public class ReliableManager {
     return false;
   }
 
-  private ReliableRequestEntity findRequest(String requestHash, Request request, CallOptions options) {
-    //Log.d(TAG, "request hash " + requestHash + " for request \n" + request);
-    List<ReliableRequestEntity> operations = new Select()
+  private ReliableRequestEntity findRequest(long requestId) {
+    return new Select()
         .from(ReliableRequestEntity.class)
-        .where("requestHash = ?", requestHash)
-        .orderBy("updatedAt DESC")
-        .execute();
-    if(null != operations && !operations.isEmpty()) {
-      // Pick the first one and remove all others
-      if (operations.size() > 1) {
-        for (int i = 1; i < operations.size(); i++) {
-          operations.get(i).delete();
-        }
-      }
-      return operations.get(0);
-    }
-
-    return null;
+        .where("Id = ?", requestId)
+        .executeSingle();
   }
-
 }
@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import android.util.Log;
+import com.magnet.max.android.config.MaxAndroidConfig;
+import com.squareup.okhttp.Dispatcher;
+import com.squareup.okhttp.Request;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays reliable calls with at most maxInFlight of them on the wire.
+ * Calls of the same endpoint are sent one at a time in the order they were made,
+ * endpoints with higher priority calls go first. Replay pauses while calls other than replays are queued in the Dispatcher.
+ */
+public class ReliableReplayEngine {
+  private static final String TAG = ReliableReplayEngine.class.getSimpleName();
+
+  private static final long INTERACTIVE_BACKOFF = 500; //milliseconds
+
+  private final Dispatcher dispatcher;
+  private volatile int maxInFlight = MaxAndroidConfig.DEFAULT_RELIABLE_MAX_CONCURRENT_REPLAYS;
+
+  // Queued calls per endpoint ordered by creation time
+  private final Map<String, LinkedList<Task>> queues = new LinkedHashMap<>();
+  // In flight calls by key
+  private final Map<String, Task> inFlight = new HashMap<>();
+  private final Set<String> busyEndpoints = new HashSet<>();
+  private final Set<String> queuedKeys = new HashSet<>();
+  // Sent calls not started by the Dispatcher yet, they are counted in its queued calls
+  private final Set<String> waitingKeys = new HashSet<>();
+
+  private ScheduledExecutorService executor;
+  private boolean drainScheduled;
+
+  public ReliableReplayEngine(Dispatcher dispatcher) {
+    this.dispatcher = dispatcher;
+  }
+
+  public void setMaxInFlight(int maxInFlight) {
+    if(maxInFlight <= 0) {
+      throw new IllegalArgumentException("maxInFlight should be positive");
+    }
+    this.maxInFlight = maxInFlight;
+    drain();
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  /**
+   * Queue the call for replay
+   * @param task
+   * @return false if a call with the same key is already queued or in flight
+   */
+  public boolean submit(Task task) {
+    synchronized (this) {
+      if(contains(task.key)) {
+        return false;
+      }
+
+      LinkedList<Task> queue = queues.get(task.endpoint);
+      if(null == queue) {
+        queue = new LinkedList<>();
+        queues.put(task.endpoint, queue);
+      }
+      // Ordered by creation time
+      ListIterator<Task> it = queue.listIterator(queue.size());
+      while(it.hasPrevious()) {
+        if(it.previous().createdAt <= task.createdAt) {
+          it.next();
+          break;
+        }
+      }
+      it.add(task);
+      queuedKeys.add(task.key);
+    }
+
+    drain();
+    return true;
+  }
+
+  /**
+   * Remove the call from the queue, it's a no-op if the call isn't queued
+   * @param key
+   * @return whether the call was queued
+   */
+  public synchronized boolean cancel(String key) {
+    if(!queuedKeys.remove(key)) {
+      return false;
+    }
+
+    Iterator<Map.Entry<String, LinkedList<Task>>> it = queues.entrySet().iterator();
+    while(it.hasNext()) {
+      LinkedList<Task> queue = it.next().getValue();
+      Iterator<Task> taskIt = queue.iterator();
+      while(taskIt.hasNext()) {
+        if(taskIt.next().key.equals(key)) {
+          taskIt.remove();
+          if(queue.isEmpty()) {
+            it.remove();
+          }
+          return true;
+        }
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Whether the call is queued or in flight
+   */
+  public synchronized boolean contains(String key) {
+    return queuedKeys.contains(key) || inFlight.containsKey(key);
+  }
+
+  /**
+   * The Dispatcher started executing the sent call, it's a no-op if the call isn't waiting
+   * @param key
+   */
+  public synchronized void onStarted(String key) {
+    waitingKeys.remove(key);
+  }
+
+  /**
+   * Release the slot of the call when it completes or fails, it's a no-op if the call isn't in flight
+   * @param key
+   */
+  public void onComplete(String key) {
+    synchronized (this) {
+      waitingKeys.remove(key);
+      Task task = inFlight.remove(key);
+      if(null == task) {
+        return;
+      }
+      busyEndpoints.remove(task.endpoint);
+    }
+
+    drain();
+  }
+
+  public synchronized int getQueuedCount() {
+    return queuedKeys.size();
+  }
+
+  public synchronized int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  /**
+   * Send queued calls until the in-flight limit is reached
+   */
+  private void drain() {
+    while(true) {
+      Task next;
+      synchronized (this) {
+        if(inFlight.size() >= maxInFlight || queuedKeys.isEmpty()) {
+          return;
+        }
+        // Own replays waiting for the Dispatcher don't count
+        if(null != dispatcher && dispatcher.getQueuedCallCount() > waitingKeys.size()) {
+          scheduleDrain(INTERACTIVE_BACKOFF);
+          return;
+        }
+
+        next = pollNext();
+        if(null == next) {
+          return;
+        }
+        inFlight.put(next.key, next);
+        busyEndpoints.add(next.endpoint);
+        waitingKeys.add(next.key);
+      }
+
+      try {
+        next.send();
+      } catch (Exception e) {
+        Log.e(TAG, "Failed to replay " + next.key, e);
+        onComplete(next.key);
+      }
+    }
+  }
+
+  /**
+   * Head of the idle endpoint which has the highest priority call, the oldest head on ties
+   */
+  private Task pollNext() {
+    String selectedEndpoint = null;
+    LinkedList<Task> selected = null;
+    int selectedPriority = Integer.MIN_VALUE;
+    for(Map.Entry<String, LinkedList<Task>> entry : queues.entrySet()) {
+      if(busyEndpoints.contains(entry.getKey())) {
+        continue;
+      }
+      LinkedList<Task> queue = entry.getValue();
+      // Calls behind in the same endpoint lift the priority of the head so they aren't starved
+      int priority = Integer.MIN_VALUE;
+      for(Task task : queue) {
+        priority = Math.max(priority, task.priority);
+      }
+      if(null == selected || priority > selectedPriority
+          || (priority == selectedPriority && queue.peek().createdAt < selected.peek().createdAt)) {
+        selectedEndpoint = entry.getKey();
+        selected = queue;
+        selectedPriority = priority;
+      }
+    }
+    if(null == selected) {
+      return null;
+    }
+
+    Task task = selected.poll();
+    queuedKeys.remove(task.key);
+    if(selected.isEmpty()) {
+      queues.remove(selectedEndpoint);
+    }
+
+    return task;
+  }
+
+  private synchronized void scheduleDrain(long delay) {
+    if(drainScheduled) {
+      return;
+    }
+
+    if(null == executor) {
+      executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "ReliableReplay");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+
+    drainScheduled = true;
+    executor.schedule(new Runnable() {
+      @Override public void run() {
+        synchronized (ReliableReplayEngine.this) {
+          drainScheduled = false;
+        }
+        drain();
+      }
+    }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Calls to the same host and path are kept in order
+   */
+  public static String getEndpoint(Request request) {
+    return request.httpUrl().host() + request.httpUrl().encodedPath();
+  }
+
+  /**
+   * A queued call, {@link #send()} should enqueue the call, {@link #onStarted(String)} be called when the Dispatcher
+   * executes it and {@link #onComplete(String)} when it finishes
+   */
+  public static abstract class Task {
+    // Identifies the call, e.g. the id of its persisted request
+    private final String key;
+    private final String endpoint;
+    private final int priority;
+    private final long createdAt;
+
+    public Task(String key, String endpoint, int priority, long createdAt) {
+      this.key = key;
+      this.endpoint = endpoint;
+      this.priority = priority;
+      this.createdAt = createdAt;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    protected abstract void send();
+
+    @Override
+    public String toString() {
+      return new StringBuilder("Task{").append("key = ").append(key).append(", ")
+          .append("endpoint = ").append(endpoint).append(", ")
+          .append("priority = ").append(priority).append("}").toString();
+    }
+  }
+}
@@ -34,17 +34,41 @@ public class ReliableRequestEntity extends Model {
   public String requestHash;
 
   /**
-   * JSON
+   * Queued requests with the same key are collapsed, null if the request isn't collapsed
+   */
+  @Column(name="collapseKey", index = true)
+  public String collapseKey;
+
+  /**
+   * Name of the {@link com.magnet.max.android.rest.ReliableCallOptions.CollapsePolicy}, null for requests saved before it's persisted
+   */
+  @Column(name="collapsePolicy")
+  public String collapsePolicy;
+
+  /**
+   * Binary, see {@link CachedRequestSerializer}
    */
   @Column(name="request")
   public CachedRequest request;
 
+  /**
+   * Generated when the request is first saved and sent on every attempt so the server can deduplicate
+   */
+  @Column(name="idempotencyKey")
+  public String idempotencyKey;
+
+  /**
+   * Not persisted, restored from expiredAt, wifiPreq, priority and collapsePolicy when loaded, see {@link ReliableManager}
+   */
   @Column(name="options")
   public ReliableCallOptions options;
 
   @Column(name="wifiPreq")
   public boolean wifiPreq;
 
+  @Column(name="priority")
+  public int priority;
+
   //@Column(name="batteryPreq")
   //public int batteryPreq;
 
@@ -57,6 +81,12 @@ public class ReliableRequestEntity extends Model {
   @Column(name="lastFailureReason")
   public String lastFailureReason;
 
+  /**
+   * Earliest time of the next attempt, null if it can be sent any time
+   */
+  @Column(name="nextAttemptAt", index = true)
+  public Long nextAttemptAt;
+
   @Column(name="createdAt")
   public Long createdAt;
 
@@ -78,10 +108,22 @@ public class ReliableRequestEntity extends Model {
     return requestHash;
   }
 
+  public String getCollapseKey() {
+    return collapseKey;
+  }
+
+  public String getCollapsePolicy() {
+    return collapsePolicy;
+  }
+
   public CachedRequest getRequest() {
     return request;
   }
 
+  public String getIdempotencyKey() {
+    return idempotencyKey;
+  }
+
   public ReliableCallOptions getOptions() {
     return options;
   }
@@ -90,6 +132,10 @@ public class ReliableRequestEntity extends Model {
     return wifiPreq;
   }
 
+  public int getPriority() {
+    return priority;
+  }
+
   public Integer getRetries() {
     return retries;
   }
@@ -102,6 +148,10 @@ public class ReliableRequestEntity extends Model {
     return lastFailureReason;
   }
 
+  public Long getNextAttemptAt() {
+    return nextAttemptAt;
+  }
+
   public Long getCreatedAt() {
     return createdAt;
   }
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import com.squareup.okhttp.MediaType;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import com.squareup.okhttp.ResponseBody;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import okio.ByteString;
+
+/**
+ * Coalesces identical concurrent requests into one network call, the buffered response is fanned out to all waiters
+ */
+public class RequestCoalescer {
+  private static final String TAG = RequestCoalescer.class.getSimpleName();
+
+  public interface NetworkCall {
+    Response proceed() throws IOException;
+  }
+
+  private final Map<String, Flight> flights = new HashMap<>();
+
+  /**
+   * Execute the call, or wait for the in-flight call with the same key
+   * @param key
+   * @param request
+   * @param timeoutMillis how long to wait for the in-flight call, 0 for no timeout
+   * @param call
+   * @return
+   * @throws IOException
+   */
+  public Response execute(String key, Request request, long timeoutMillis, NetworkCall call) throws IOException {
+    Flight flight;
+    boolean isLeader;
+    synchronized (flights) {
+      flight = flights.get(key);
+      isLeader = null == flight;
+      if(isLeader) {
+        flight = new Flight();
+        flights.put(key, flight);
+      } else {
+        flight.waiters++;
+      }
+    }
+
+    if(!isLeader) {
+      return flight.await(request, timeoutMillis);
+    }
+
+    IOException error = null;
+    try {
+      Response response = call.proceed();
+
+      int waiters;
+      synchronized (flights) {
+        flights.remove(key);
+        waiters = flight.waiters;
+      }
+      if(0 == waiters) {
+        // Nobody is waiting, no need to buffer
+        flight.complete(null, null, null);
+        return response;
+      }
+
+      MediaType contentType = null;
+      byte[] body = null;
+      if(null != response.body()) {
+        contentType = response.body().contentType();
+        body = response.body().bytes();
+      }
+      Response snapshot = response.newBuilder().body(null).build();
+      flight.complete(snapshot, contentType, body);
+
+      return flight.newResponse(request);
+    } catch (IOException e) {
+      error = e;
+      throw e;
+    } catch (RuntimeException e) {
+      error = new IOException("Failed to execute request " + request.urlString(), e);
+      throw e;
+    } finally {
+      if(null != error) {
+        synchronized (flights) {
+          flights.remove(key);
+        }
+        flight.fail(error);
+      }
+    }
+  }
+
+  /**
+   * Key of the request as it goes on the wire : the request hash plus the url and all headers of the network request,
+   * so calls with a different Authorization (owner of the cache), Range, Accept or conditional header don't share a response
+   * @param request
+   * @param networkRequest the request with auth token, conditional and mock changes applied
+   * @return
+   */
+  public static String getKey(Request request, Request networkRequest) {
+    return ByteString.encodeUtf8(CacheUtils.getRequestHash(request) + "\n" + networkRequest.urlString() + "\n"
+        + networkRequest.headers()).md5().hex();
+  }
+
+  public int getInFlightCount() {
+    synchronized (flights) {
+      return flights.size();
+    }
+  }
+
+  private static class Flight {
+    private final CountDownLatch latch = new CountDownLatch(1);
+    // Guarded by the flights map
+    private int waiters;
+
+    private Response snapshot;
+    private MediaType contentType;
+    private byte[] body;
+    private IOException error;
+
+    public void complete(Response snapshot, MediaType contentType, byte[] body) {
+      this.snapshot = snapshot;
+      this.contentType = contentType;
+      this.body = body;
+      latch.countDown();
+    }
+
+    public void fail(IOException error) {
+      this.error = error;
+      latch.countDown();
+    }
+
+    public Response await(Request request, long timeoutMillis) throws IOException {
+      try {
+        if(timeoutMillis > 0) {
+          if(!latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new SocketTimeoutException("Timed out waiting for response of " + request.urlString());
+          }
+        } else {
+          latch.await();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for response of " + request.urlString());
+      }
+
+      if(null != error) {
+        throw new IOException(error.getMessage(), error);
+      }
+
+      return newResponse(request);
+    }
+
+    public Response newResponse(Request request) {
+      Response.Builder builder = snapshot.newBuilder().request(request);
+      if(null != body) {
+        builder.body(ResponseBody.create(contentType, body));
+      }
+
+      return builder.build();
+    }
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of request hashes, thread safe. It can give false positives but never false negatives.
+ */
+public class RequestHashBloomFilter {
+  private static final int BITS_PER_ENTRY = 10;
+  private static final int HASH_FUNCTIONS = 7; // ~1% false positives at the expected number of entries
+  private static final int MIN_BITS = 1024;
+
+  private final AtomicLongArray bits;
+  private final int numBits;
+
+  public RequestHashBloomFilter(int expectedEntries) {
+    long requiredBits = Math.max(MIN_BITS, (long) expectedEntries * BITS_PER_ENTRY);
+    int words = (int) Math.min(Integer.MAX_VALUE / 64, (requiredBits + 63) / 64);
+    this.bits = new AtomicLongArray(words);
+    this.numBits = words * 64;
+  }
+
+  public void add(String requestHash) {
+    int hash1 = requestHash.hashCode();
+    int hash2 = secondHash(requestHash);
+    for(int i = 0; i < HASH_FUNCTIONS; i++) {
+      int index = bitIndex(hash1, hash2, i);
+      long mask = 1L << (index & 63);
+      int word = index >>> 6;
+      long current;
+      do {
+        current = bits.get(word);
+        if((current & mask) != 0) {
+          break;
+        }
+      } while (!bits.compareAndSet(word, current, current | mask));
+    }
+  }
+
+  /**
+   * @return false if the request hash was definitely never added
+   */
+  public boolean mightContain(String requestHash) {
+    int hash1 = requestHash.hashCode();
+    int hash2 = secondHash(requestHash);
+    for(int i = 0; i < HASH_FUNCTIONS; i++) {
+      int index = bitIndex(hash1, hash2, i);
+      if((bits.get(index >>> 6) & (1L << (index & 63))) == 0) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  public int getNumBits() {
+    return numBits;
+  }
+
+  private int bitIndex(int hash1, int hash2, int i) {
+    // Double hashing, see Kirsch and Mitzenmacher
+    return ((hash1 + i * hash2) & Integer.MAX_VALUE) % numBits;
+  }
+
+  /**
+   * FNV-1a, independent from String.hashCode
+   */
+  private static int secondHash(String s) {
+    int hash = 0x811c9dc5;
+    for(int i = 0; i < s.length(); i++) {
+      hash ^= s.charAt(i);
+      hash *= 0x01000193;
+    }
+
+    return hash | 1; // Odd so the probes don't collapse
+  }
+}
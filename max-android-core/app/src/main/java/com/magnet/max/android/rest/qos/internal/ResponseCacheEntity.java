@@ -22,8 +22,12 @@ import com.activeandroid.annotation.Table;
 
 @Table(name = "ResponseCacheEntity")
 public class ResponseCacheEntity extends Model {
+  static final String UNIQUE_GROUP = "requestHashOffline";
 
-  @Column(name="requestHash", index = true)
+  /**
+   * One online and one offline cache at most per request
+   */
+  @Column(name="requestHash", index = true, uniqueGroups = {UNIQUE_GROUP}, onUniqueConflicts = {Column.ConflictAction.REPLACE})
   public String requestHash;
 
   @Column(name="method")
@@ -32,11 +36,17 @@ public class ResponseCacheEntity extends Model {
   @Column(name="url")
   public String url;
 
-  @Column(name="isOfflineCache")
+  /**
+   * Id of the user whose token authenticated the request, null for shared (app token or anonymous) cache
+   */
+  @Column(name="owner", index = true)
+  public String owner;
+
+  @Column(name="isOfflineCache", uniqueGroups = {UNIQUE_GROUP}, onUniqueConflicts = {Column.ConflictAction.REPLACE})
   public boolean isOfflineCache;
 
   /**
-   * JSON
+   * Binary, see {@link CachedResponseSerializer}
    */
   @Column(name="response")
   public CachedResponse response;
@@ -47,12 +57,40 @@ public class ResponseCacheEntity extends Model {
   @Column(name="createdAt")
   public Long createdAt;
 
-  @Column(name="updatedAt")
+  @Column(name="updatedAt", index = true)
   public Long updatedAt;
 
-  @Column(name="expiredAt")
+  @Column(name="expiredAt", index = true)
   public Long expiredAt;
 
+  /**
+   * Validators used to revalidate the cache when it's expired
+   */
+  @Column(name="etag")
+  public String etag;
+
+  @Column(name="lastModified")
+  public String lastModified;
+
+  /**
+   * Values of the request headers listed in Vary of the response, the cache only matches requests with same values.
+   * Only one variant is kept per request hash.
+   */
+  @Column(name="varyHeaders")
+  public String varyHeaders;
+
+  /**
+   * Storage size in bytes, used by the size-bounded eviction
+   */
+  @Column(name="size")
+  public long size;
+
+  /**
+   * Path of the body file if the body isn't stored inline, see {@link CachedBodyStore}
+   */
+  @Column(name="bodyFile")
+  public String bodyFile;
+
   public String getRequestHash() {
     return requestHash;
   }
@@ -65,6 +103,10 @@ public class ResponseCacheEntity extends Model {
     return url;
   }
 
+  public String getOwner() {
+    return owner;
+  }
+
   public int getResponseCode() {
     return responseCode;
   }
@@ -88,4 +130,24 @@ public class ResponseCacheEntity extends Model {
   public Long getExpiredAt() {
     return expiredAt;
   }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  public String getLastModified() {
+    return lastModified;
+  }
+
+  public String getVaryHeaders() {
+    return varyHeaders;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public String getBodyFile() {
+    return bodyFile;
+  }
 }
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+import com.activeandroid.ActiveAndroid;
+import com.activeandroid.Cache;
+
+/**
+ * In-memory index of the request hashes in the response cache, so definite cache misses don't query the database.
+ * Until the index is built every lookup is treated as a possible hit.
+ */
+public class ResponseCacheIndex {
+  private static final String TAG = ResponseCacheIndex.class.getSimpleName();
+
+  private static final int DEFAULT_EXPECTED_ENTRIES = 1000;
+
+  private volatile RequestHashBloomFilter filter = new RequestHashBloomFilter(DEFAULT_EXPECTED_ENTRIES);
+  // Filter being rebuilt, it receives the hashes added during the rebuild
+  private volatile RequestHashBloomFilter nextFilter;
+  private volatile boolean ready;
+
+  /**
+   * @return false if there is definitely no cache for the request hash
+   */
+  public boolean mightContain(String requestHash) {
+    return !ready || filter.mightContain(requestHash);
+  }
+
+  /**
+   * Should be called after the cache of the request hash is written to the database
+   */
+  public void add(String requestHash) {
+    RequestHashBloomFilter next = nextFilter;
+    if(null != next) {
+      next.add(requestHash);
+    }
+    filter.add(requestHash);
+  }
+
+  public boolean isReady() {
+    return ready;
+  }
+
+  public void rebuildInBackground() {
+    Thread thread = new Thread(new Runnable() {
+      @Override public void run() {
+        try {
+          rebuild();
+        } catch (Exception e) {
+          Log.e(TAG, "Failed to build response cache index", e);
+        }
+      }
+    }, "ResponseCacheIndex");
+    thread.setPriority(Thread.MIN_PRIORITY);
+    thread.start();
+  }
+
+  /**
+   * Rebuild the index from the database to drop removed entries
+   */
+  public synchronized void rebuild() {
+    long startTime = System.currentTimeMillis();
+    SQLiteDatabase db = ActiveAndroid.getDatabase();
+    String tableName = Cache.getTableName(ResponseCacheEntity.class);
+
+    long count = DatabaseUtils.longForQuery(db, "SELECT COUNT(DISTINCT requestHash) FROM " + tableName, null);
+    RequestHashBloomFilter next = new RequestHashBloomFilter((int) Math.max(DEFAULT_EXPECTED_ENTRIES, count * 2));
+    // Set before querying, so hashes committed after the query are still added by add()
+    nextFilter = next;
+    try {
+      Cursor cursor = db.rawQuery("SELECT DISTINCT requestHash FROM " + tableName, null);
+      try {
+        while (cursor.moveToNext()) {
+          next.add(cursor.getString(0));
+        }
+      } finally {
+        cursor.close();
+      }
+      filter = next;
+      ready = true;
+    } finally {
+      nextFilter = null;
+    }
+
+    Log.d(TAG, "Response cache index built with " + count + " entries in " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+}
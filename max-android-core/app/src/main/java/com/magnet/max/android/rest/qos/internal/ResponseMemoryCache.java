@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2015 Magnet Systems, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.magnet.max.android.rest.qos.internal;
+
+import android.util.LruCache;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory LRU tier in front of the SQLite response cache, bounded by the bytes of cached responses
+ */
+public class ResponseMemoryCache {
+  private static final String TAG = ResponseMemoryCache.class.getSimpleName();
+
+  public static final int DEFAULT_MAX_SIZE = 4 * 1024 * 1024; //4M
+  private static final int ENTRY_OVERHEAD = 256;
+
+  private final LruCache<String, Entry> entries;
+
+  private final AtomicLong hitCount = new AtomicLong();
+  private final AtomicLong missCount = new AtomicLong();
+
+  public ResponseMemoryCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  public ResponseMemoryCache(int maxSize) {
+    entries = new LruCache<String, Entry>(maxSize) {
+      @Override protected int sizeOf(String key, Entry value) {
+        return value.size;
+      }
+    };
+  }
+
+  /**
+   * Get the online cache of the request if it isn't expired
+   * @param requestHash
+   * @return
+   */
+  public ResponseCacheEntity get(String requestHash) {
+    Entry entry = entries.get(requestHash);
+    if(null != entry) {
+      if(!isExpired(entry.entity)) {
+        hitCount.incrementAndGet();
+        return entry.entity;
+      } else {
+        entries.remove(requestHash);
+      }
+    }
+
+    missCount.incrementAndGet();
+    return null;
+  }
+
+  /**
+   * Only online caches are kept, as the database has separate online and offline caches of the same request
+   * @param requestHash
+   * @param entity
+   */
+  public void put(String requestHash, ResponseCacheEntity entity) {
+    if(null == entity || null == entity.response || entity.isOfflineCache) {
+      return;
+    }
+
+    if(isExpired(entity)) {
+      entries.remove(requestHash);
+      return;
+    }
+
+    entries.put(requestHash, new Entry(entity));
+  }
+
+  public void remove(String requestHash) {
+    entries.remove(requestHash);
+  }
+
+  public void clear() {
+    entries.evictAll();
+  }
+
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  public int getEvictionCount() {
+    return entries.evictionCount();
+  }
+
+  public int getSize() {
+    return entries.size();
+  }
+
+  public int getMaxSize() {
+    return entries.maxSize();
+  }
+
+  @Override
+  public String toString() {
+    return new StringBuilder("ResponseMemoryCache{").append("size = ").append(getSize()).append(", ")
+        .append("hits = ").append(getHitCount()).append(", ")
+        .append("misses = ").append(getMissCount()).append(", ")
+        .append("evictions = ").append(getEvictionCount()).append("}").toString();
+  }
+
+  private static boolean isExpired(ResponseCacheEntity entity) {
+    return null == entity.getExpiredAt() || entity.getExpiredAt() < System.currentTimeMillis();
+  }
+
+  private static class Entry {
+    private final ResponseCacheEntity entity;
+    // Computed once so the LRU accounting stays consistent even if the entity is updated later
+    private final int size;
+
+    public Entry(ResponseCacheEntity entity) {
+      this.entity = entity;
+      this.size = sizeOf(entity.response);
+    }
+
+    private static int sizeOf(CachedResponse response) {
+      int size = ENTRY_OVERHEAD;
+      if(null != response.body) {
+        size += response.body.length;
+      }
+      if(null != response.headers) {
+        for(String s : response.headers) {
+          size += null != s ? s.length() * 2 : 0;
+        }
+      }
+
+      return size;
+    }
+  }
+}
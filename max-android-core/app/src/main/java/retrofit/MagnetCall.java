@@ -22,9 +22,14 @@ import com.magnet.max.android.rest.CacheOptions;
 import com.magnet.max.android.rest.CallOptions;
 import com.magnet.max.android.rest.ReliableCallOptions;
 import com.magnet.max.android.rest.RequestManager;
+import com.magnet.max.android.rest.annotation.CacheKey;
 import com.magnet.max.android.rest.qos.Condition;
+import com.magnet.max.android.rest.qos.internal.CacheUtils;
 import com.squareup.okhttp.CacheControl;
 import com.squareup.okhttp.Request;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
@@ -38,6 +43,9 @@ public class MagnetCall<T> {
   private final Executor callbackExecutor;
 
   private boolean executed;
+  private Set<String> invalidatedTags = Collections.emptySet();
+  private String urlTemplate;
+  private CacheKey cacheKey;
 
   public MagnetCall(Call<T> call, AuthTokenProvider authTokenProvider, RequestManager requestManager, Executor callbackExecutor) {
     this.call = call;
@@ -46,6 +54,41 @@ public class MagnetCall<T> {
     this.callbackExecutor = callbackExecutor;
   }
 
+  /**
+   * Invalidate the cached responses with any of the tags when the call succeeds
+   * @param tags
+   * @return
+   */
+  public MagnetCall<T> invalidatesCache(String... tags) {
+    this.invalidatedTags = new HashSet<>(Arrays.asList(tags));
+    return this;
+  }
+
+  /**
+   * Url template of the Retrofit method, used to break down cache stats
+   */
+  void setUrlTemplate(String urlTemplate) {
+    this.urlTemplate = urlTemplate;
+  }
+
+  /**
+   * Cache key configuration of the Retrofit method
+   */
+  void setCacheKey(CacheKey cacheKey) {
+    this.cacheKey = cacheKey;
+  }
+
+  /**
+   * A new call of the same request with the same cache settings, which can be executed even if this one has been
+   */
+  @Override public MagnetCall<T> clone() {
+    MagnetCall<T> clone = new MagnetCall<>(call.clone(), authTokenProvider, requestManager, callbackExecutor);
+    clone.invalidatedTags = invalidatedTags;
+    clone.urlTemplate = urlTemplate;
+    clone.cacheKey = cacheKey;
+    return clone;
+  }
+
   public void executeInBackground() {
     executeInBackground(null);
   }
@@ -54,6 +97,41 @@ public class MagnetCall<T> {
     execute(options, null);
   }
 
+  /**
+   * Execute the call in background at low priority only to fill the cache, the callback isn't called.
+   * It's skipped if any of the conditions isn't met.
+   * @param options
+   * @param conditions
+   */
+  public void prefetch(CacheOptions options, Condition... conditions) {
+    if(null == options) {
+      throw new IllegalArgumentException("CacheOptions shouldn't be null");
+    }
+    synchronized(this) {
+      if(this.executed) {
+        throw new IllegalStateException("Already executed");
+      }
+
+      this.executed = true;
+    }
+
+    OkHttpCall<T> okHttpCall = (OkHttpCall<T>) call;
+    removeCallback(okHttpCall);
+    Request request = okHttpCall.getRequest(null);
+    if(null != urlTemplate) {
+      CacheUtils.setUrlTemplate(request, urlTemplate);
+    }
+    if(null != cacheKey) {
+      CacheUtils.setCacheKey(request, cacheKey.ignoredParams(), cacheKey.headers());
+    }
+    if(!isCallReady(request, null)) {
+      Log.i(TAG, "Request " + request.urlString() + " is not ready, skip prefetching");
+      return;
+    }
+
+    requestManager.prefetch(call, request, options, new HashSet<>(Arrays.asList(conditions)));
+  }
+
   public void executeEventually() {
     executeEventually(null);
   }
@@ -77,6 +155,12 @@ public class MagnetCall<T> {
     } else if(null != reliableOptions) {
       options = new CallOptions(reliableOptions);
     }
+    if(!invalidatedTags.isEmpty()) {
+      if(null == options) {
+        options = new CallOptions((CacheOptions) null);
+      }
+      options.setInvalidatedTags(invalidatedTags);
+    }
 
     OkHttpCall<T> okHttpCall = (OkHttpCall<T>) call;
     Callback<T> callback = extractAndRemoveCallback(okHttpCall);
@@ -84,6 +168,12 @@ public class MagnetCall<T> {
     Callback<T> callbackInMainThread = new ExecutorCallback<>(callbackExecutor, callback);
 
     Request request = okHttpCall.getRequest(null);
+    if(null != urlTemplate) {
+      CacheUtils.setUrlTemplate(request, urlTemplate);
+    }
+    if(null != cacheKey) {
+      CacheUtils.setCacheKey(request, cacheKey.ignoredParams(), cacheKey.headers());
+    }
 
     if(null != reliableOptions) {
       Set<Condition> failedPrerequisites = reliableOptions.unsatisfiedConditions(true);
@@ -121,6 +211,20 @@ public class MagnetCall<T> {
    * @return
    */
   private Callback<T> extractAndRemoveCallback(OkHttpCall okHttpCall) {
+    Callback<T> callback = removeCallback(okHttpCall);
+    if (null == callback) {
+      throw new IllegalArgumentException("Last argument should be Callback");
+    }
+
+    return callback;
+  }
+
+  /**
+   * Remove the callback in the last argument from OkHttpCall if there is one
+   * @param okHttpCall
+   * @return null if there is no callback
+   */
+  private Callback<T> removeCallback(OkHttpCall okHttpCall) {
     Object[] args = okHttpCall.getArgs();
     Callback<T> callback = null;
     if (null != args && args.length > 0 && args[args.length - 1] instanceof Callback) {
@@ -129,9 +233,6 @@ public class MagnetCall<T> {
       System.arraycopy(args, 0, actualArgs, 0, args.length - 1);
       okHttpCall.setArgs(actualArgs);
     }
-    if (null == callback) {
-      throw new IllegalArgumentException("Last argument should be Callback");
-    }
 
     return callback;
   }
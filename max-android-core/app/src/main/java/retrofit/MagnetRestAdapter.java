@@ -24,10 +24,16 @@ import com.magnet.max.android.MaxRestAuthenticator;
 import com.magnet.max.android.auth.AuthTokenProvider;
 import com.magnet.max.android.connectivity.ConnectivityManager;
 import com.magnet.max.android.rest.MagnetCallAdapter;
+import com.magnet.max.android.rest.CacheInvalidationRule;
+import com.magnet.max.android.rest.CacheOptions;
+import com.magnet.max.android.rest.PrefetchManifest;
 import com.magnet.max.android.rest.RequestInterceptor;
 import com.magnet.max.android.rest.RequestManager;
 import com.magnet.max.android.rest.RestConstants;
+import com.magnet.max.android.rest.annotation.CacheKey;
 import com.magnet.max.android.rest.annotation.Timeout;
+import com.magnet.max.android.rest.qos.Condition;
+import com.magnet.max.android.rest.qos.internal.CacheStats;
 import com.magnet.max.android.rest.marshalling.MagnetGsonConverterFactory;
 import com.magnet.max.android.util.StringUtil;
 import com.squareup.okhttp.Cache;
@@ -37,6 +43,7 @@ import com.squareup.okhttp.Request;
 import com.squareup.okhttp.RequestBody;
 import com.squareup.okhttp.ResponseBody;
 import java.io.File;
+import java.lang.annotation.Annotation;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
@@ -48,7 +55,13 @@ import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
+import retrofit.http.DELETE;
+import retrofit.http.GET;
+import retrofit.http.HEAD;
 import retrofit.http.HTTP;
+import retrofit.http.PATCH;
+import retrofit.http.POST;
+import retrofit.http.PUT;
 import retrofit.http.Header;
 
 import static retrofit.Utils.checkNotNull;
@@ -133,6 +146,7 @@ public class MagnetRestAdapter implements MaxModule, AuthTokenProvider {
 
   private Context applicationContext;
   private boolean isAuthRequired = false;
+  private volatile PrefetchManifest prefetchManifest;
 
   private MagnetRestAdapter(OkHttpClient client, BaseUrl baseUrl, List<Converter.Factory> converterFactories,
       /*List<CallAdapter.Factory> adapterFactories,*/ Executor callbackExecutor) {
@@ -185,6 +199,7 @@ public class MagnetRestAdapter implements MaxModule, AuthTokenProvider {
     if(isEmptyBeforeUpdate && StringUtil.isNotEmpty(appToken)) {
       Log.i(TAG, "app token become available, sending pending queue");
       requestManager.resendPendingCallsForToken();
+      warmUp(prefetchManifest);
     }
 
     Log.d(TAG, "MagnetRestAdapter : appToken updated : " + mAppToken);
@@ -198,6 +213,10 @@ public class MagnetRestAdapter implements MaxModule, AuthTokenProvider {
     Log.d(TAG, "MagnetRestAdapter : userToken updated : " + mUserToken + " from thread " + Thread.currentThread().getId());
 
     //requestManager.resendPendingCallsForToken();
+    if(StringUtil.isNotEmpty(userToken)) {
+      // Warm the partition of the user too
+      warmUp(prefetchManifest);
+    }
   }
 
   @Override public void onClose(boolean b) {
@@ -231,16 +250,134 @@ public class MagnetRestAdapter implements MaxModule, AuthTokenProvider {
     requestManager.clearPendingCalls();
   }
 
+  /**
+   * Max number of reliable calls replayed at the same time
+   * @param maxInFlight
+   */
+  public void setMaxConcurrentReplays(int maxInFlight) {
+    requestManager.setMaxConcurrentReplays(maxInFlight);
+  }
+
+  /**
+   * Replay queued reliable calls in batches POSTed to the path
+   * @param path relative to the base url
+   * @param maxSize max number of calls in a batch
+   */
+  public void setReliableBatchEndpoint(String path, int maxSize) {
+    HttpUrl url = baseUrl.url().resolve(path);
+    if(null == url) {
+      Log.w(TAG, "Invalid batch endpoint " + path);
+      return;
+    }
+    requestManager.setBatchEndpoint(url, maxSize);
+  }
+
+  /**
+   * Bound the response cache and compact it periodically in background
+   * @param maxSize max size in bytes
+   * @param maxEntries max number of entries
+   */
+  public void scheduleCacheCompaction(long maxSize, int maxEntries) {
+    requestInterceptor.getCacheManager().scheduleCompaction(maxSize, maxEntries);
+  }
+
+  /**
+   * Report cache stats through the Logger periodically
+   * @param intervalSeconds
+   */
+  public void scheduleCacheStatsReport(long intervalSeconds) {
+    requestInterceptor.getCacheManager().scheduleStatsReport(intervalSeconds);
+  }
+
+  public CacheStats getCacheStats() {
+    return requestInterceptor.getCacheManager().getStats();
+  }
+
+  /**
+   * Cache options applied to GET calls made without options
+   * @param options
+   */
+  public void setDefaultCacheOptions(CacheOptions options) {
+    requestInterceptor.setDefaultCacheOptions(options);
+  }
+
+  public void invalidateCache(String... tags) {
+    requestInterceptor.getCacheManager().invalidateTags(Arrays.asList(tags));
+  }
+
+  public void addCacheInvalidationRule(CacheInvalidationRule rule) {
+    requestInterceptor.getCacheManager().addInvalidationRule(rule);
+  }
+
+  public void clearUserCache(String userId) {
+    requestInterceptor.getCacheManager().dropPartition(userId);
+  }
+
+  /**
+   * Warm the cache with the manifest once the app token is available, or now if it's already available.
+   * It's warmed again in the cache partition of each user who logs in.
+   * @param manifest
+   */
+  public void setPrefetchManifest(PrefetchManifest manifest) {
+    this.prefetchManifest = manifest;
+    if(null != getAppToken()) {
+      warmUp(manifest);
+    }
+  }
+
+  private void warmUp(PrefetchManifest manifest) {
+    if(null == manifest) {
+      return;
+    }
+
+    Log.d(TAG, "Warming up cache with " + manifest);
+    Condition[] conditions = manifest.getConditions().toArray(new Condition[0]);
+    for(MagnetCall<?> call : manifest.getCalls()) {
+      // Same cache key as the call made by the app, the manifest is kept for the next warm up
+      call.clone().prefetch(manifest.getCacheOptions(), conditions);
+    }
+  }
+
   private final InvocationHandler handler = new InvocationHandler() {
     @Override public Object invoke(Object proxy, Method method, Object... args) throws Throwable {
       // If the method is a method from Object then defer to normal invocation.
       if (method.getDeclaringClass() == Object.class) {
         return method.invoke(this, args);
       }
-      return loadMethodHandler(method).invoke(args);
+      Object result = loadMethodHandler(method).invoke(args);
+      if(result instanceof MagnetCall) {
+        ((MagnetCall) result).setUrlTemplate(getUrlTemplate(method));
+        ((MagnetCall) result).setCacheKey(method.getAnnotation(CacheKey.class));
+      }
+      return result;
     }
   };
 
+  /**
+   * Method and relative url of the Retrofit method, e.g. "GET api/users/{userId}"
+   */
+  private static String getUrlTemplate(Method method) {
+    for(Annotation annotation : method.getAnnotations()) {
+      if(annotation instanceof GET) {
+        return "GET " + ((GET) annotation).value();
+      } else if(annotation instanceof POST) {
+        return "POST " + ((POST) annotation).value();
+      } else if(annotation instanceof PUT) {
+        return "PUT " + ((PUT) annotation).value();
+      } else if(annotation instanceof DELETE) {
+        return "DELETE " + ((DELETE) annotation).value();
+      } else if(annotation instanceof PATCH) {
+        return "PATCH " + ((PATCH) annotation).value();
+      } else if(annotation instanceof HEAD) {
+        return "HEAD " + ((HEAD) annotation).value();
+      } else if(annotation instanceof HTTP) {
+        return ((HTTP) annotation).method() + " " + ((HTTP) annotation).path();
+      }
+    }
+
+    return null;
+  }
+
   MethodHandler<?> loadMethodHandler(Method method) {
     MethodHandler<?> handler;
     synchronized (methodHandlerCache) {